@@ -0,0 +1,149 @@
+package org.honeyseeker;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * One benchmark per stage a book goes through, from inflating the archive entry to rendering the preview.
+ * Fixtures are small synthetic books in src/jmh/resources/fixtures, packed into a temporary archive on setup.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearcherStagesBenchmark {
+    private static final Logger SILENT_LOGGER = new Logger() {
+        @Override
+        public void logInfo(List<String> lines) {}
+
+        @Override
+        public void logInfo(String line) {}
+
+        @Override
+        public void logWarn(List<String> lines) {}
+
+        @Override
+        public void logWarn(String line) {}
+    };
+
+    @State(Scope.Thread)
+    public static class Book {
+        @Param({"utf8.fb2", "cp1251.fb2"})
+        String fixture;
+
+        File archive;
+        MappedZipFile zip;
+        ZipEntry entry;
+        EntrySource source;
+        Charset charset;
+        String xml;
+        String text;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            byte[] content;
+            try (InputStream input = Book.class.getResourceAsStream("/fixtures/" + fixture)) {
+                if (input == null) {
+                    throw new IOException("fixture not found: " + fixture);
+                }
+                content = input.readAllBytes();
+            }
+            archive = Files.createTempFile("honeyseeker-bench", ".zip").toFile();
+            try (ZipOutputStream output = new ZipOutputStream(new FileOutputStream(archive))) {
+                output.putNextEntry(new ZipEntry(fixture));
+                output.write(content);
+                output.closeEntry();
+            }
+            zip = new MappedZipFile(archive);
+            entry = zip.getEntry(fixture);
+            source = EntrySource.read(zip, entry);
+            charset = XmlCharsetDetector.getCharsetFromXml(source, SILENT_LOGGER);
+            xml = source.decode(charset);
+            text = Searcher.extractBookText(xml);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            zip.close();
+            Files.deleteIfExists(archive.toPath());
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Query {
+        @Param({"медведь", "медвед[ья]\\s+\\p{L}+"})
+        String query;
+
+        QueryPlan plan;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            plan = QueryPlan.compile(query);
+        }
+    }
+
+    @Benchmark
+    public EntrySource inflate(Book book) throws IOException {
+        return EntrySource.read(book.zip, book.entry);
+    }
+
+    @Benchmark
+    public Charset detectCharset(Book book) {
+        return XmlCharsetDetector.getCharsetFromXml(book.source, SILENT_LOGGER);
+    }
+
+    @Benchmark
+    public String decode(Book book) {
+        return book.source.decode(book.charset);
+    }
+
+    @Benchmark
+    public MappedText extractText(Book book) throws Exception {
+        return TextExtractor.extractMappedText(book.xml);
+    }
+
+    @Benchmark
+    public List<SearchResult.SearchEncounter> searchText(Book book, Query query) {
+        return Searcher.searchInText(book.text, query.plan, Searcher.CONTEXT_SIZE);
+    }
+
+    @Benchmark
+    public List<SearchResult.SearchEncounter> searchXml(Book book, Query query) {
+        return Searcher.searchInText(book.xml, query.plan, Searcher.CONTEXT_SIZE);
+    }
+
+    @Benchmark
+    public List<SearchResult.SearchEncounter> extractGenres(Book book) {
+        return Searcher.searchInText(book.xml, Searcher.GENRE_QUERY, 0);
+    }
+
+    @Benchmark
+    public void renderHtml(Book book) throws Exception {
+        BookRenderer.renderToHtml(new StringReader(book.xml), OutputStream.nullOutputStream());
+    }
+}
@@ -0,0 +1,42 @@
+package org.honeyseeker;
+
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Bibliographic data of a book from {@code <description>/<title-info>}, see {@link TextExtractor#extractMetadata}.
+ *
+ * @param authors names of the authors, each joined from its first, middle and last name or nickname
+ * @param date text or {@code value} of {@code <date>}, empty if there is none
+ */
+public record BookMetadata(List<String> authors, String title, List<String> genres, String lang, String date) {
+    private static final Pattern YEAR_PATTERN = Pattern.compile("\\d{4}");
+
+    /**
+     * @return first four digit number of the date, -1 if there is none
+     */
+    public int getYear() {
+        Matcher matcher = YEAR_PATTERN.matcher(date);
+        return matcher.find() ? Integer.parseInt(matcher.group()) : -1;
+    }
+
+    /**
+     * @return one line to show the book by, like {@code Иван Петров. Книга [ru, 1905]}
+     */
+    public String getSummary() {
+        StringBuilder summary = new StringBuilder(String.join(", ", authors));
+        if (!title.isEmpty()) {
+            summary.append(summary.isEmpty() ? "" : ". ").append(title);
+        }
+        int year = getYear();
+        if (!lang.isEmpty() || year != -1) {
+            summary.append(" [").append(lang);
+            if (year != -1) {
+                summary.append(lang.isEmpty() ? "" : ", ").append(year);
+            }
+            summary.append(']');
+        }
+        return summary.toString().trim();
+    }
+}
@@ -0,0 +1,37 @@
+package org.honeyseeker;
+
+import javax.xml.transform.Templates;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+
+/**
+ * Renders fb2 books to HTML with the bundled stylesheet. The stylesheet is compiled once, and books are
+ * transformed straight from the stream without building a DOM. Safe to use from several threads.
+ */
+public class BookRenderer {
+    private static Templates templates;
+
+    public static void renderToHtml(Reader book, OutputStream output) throws IOException, TransformerException {
+        getTemplates().newTransformer().transform(new StreamSource(book), new StreamResult(output));
+    }
+
+    private static synchronized Templates getTemplates() throws IOException, TransformerConfigurationException {
+        if (templates == null) {
+            // Get stylesheet from resources (works both in IDE and JAR)
+            try (InputStream stylesheetStream = BookRenderer.class.getResourceAsStream("/fb22htmls.xsl")) {
+                if (stylesheetStream == null) {
+                    throw new IOException("Stylesheet not found in resources");
+                }
+                templates = TransformerFactory.newInstance().newTemplates(new StreamSource(stylesheetStream));
+            }
+        }
+        return templates;
+    }
+}
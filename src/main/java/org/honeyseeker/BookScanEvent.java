@@ -0,0 +1,80 @@
+package org.honeyseeker;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Flight Recorder event of a single book going through the search. The same fields feed {@link SearchMetrics},
+ * so they are filled in whether recording is on or not.
+ */
+@Name("org.honeyseeker.BookScan")
+@Label("Book Scan")
+@Category("HoneySeeker")
+@Description("Archive entry read, decoded, parsed and searched")
+@StackTrace(false)
+public class BookScanEvent extends Event {
+    @Label("Archive")
+    String archive;
+
+    @Label("Entry")
+    String entry;
+
+    @Label("Bytes Inflated")
+    @DataAmount
+    long bytesInflated;
+
+    @Label("Charset")
+    String charset;
+
+    @Label("Charset Confidence")
+    @Description("100 if the bytes agreed with the declared charset, otherwise confidence of the ICU detector")
+    int charsetConfidence;
+
+    @Label("Charset Detected Statistically")
+    @Description("Neither the declaration nor an earlier book of the archive gave a charset the bytes agreed with")
+    boolean isCharsetStatistical;
+
+    @Label("Inflate Time")
+    @Timespan
+    long inflateTime;
+
+    @Label("Charset Detection Time")
+    @Timespan
+    long detectTime;
+
+    @Label("Decode Time")
+    @Timespan
+    long decodeTime;
+
+    @Label("Parse Time")
+    @Timespan
+    long parseTime;
+
+    @Label("Search Time")
+    @Timespan
+    long searchTime;
+
+    @Label("Text Cache Hit")
+    boolean isTextCacheHit;
+
+    @Label("Rejected By Metadata")
+    @Description("The description of the book didn't pass the metadata filter, the body was never read")
+    boolean isMetadataRejected;
+
+    @Label("Rejected By Prefilter")
+    boolean isPrefilterRejected;
+
+    @Label("XML Fallback Used")
+    @Description("Text extraction failed and only the raw XML was searched")
+    boolean isXmlFallbackUsed;
+
+    @Label("Over Time Budget")
+    @Description("The book took longer than the time budget of a book and was skipped")
+    boolean isOverTimeBudget;
+}
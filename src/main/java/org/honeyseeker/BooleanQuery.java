@@ -0,0 +1,572 @@
+package org.honeyseeker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Boolean and proximity query, for example {@code медведь NEAR(200) (мёд OR улей) NOT "бурый медведь"}.
+ * <p>
+ * Operators from the loosest to the tightest: {@code OR}, {@code AND} (also implied between operands),
+ * {@code NEAR(n)} or {@code NEAR/n} (operands at most n chars apart) and {@code NOT}. Operands are words,
+ * {@code "phrases"} and {@code /regular expressions/}, all case sensitive, as any query. {@code NOT} can only
+ * narrow an {@code AND} down, a query has to point to something in the book.
+ * <p>
+ * Every operand is scanned through the book once, the operators then merge the sorted positions of the operand
+ * matches, nothing backtracks over the book. Matches of the query are the matches of its operands, a {@code NEAR}
+ * match is the whole window from one operand to the other.
+ */
+public class BooleanQuery {
+    private final Node root;
+    private final List<String> requiredLiterals;
+
+    private BooleanQuery(Node root) {
+        this.root = root;
+        this.requiredLiterals = root.getRequiredLiterals();
+    }
+
+    /**
+     * @throws PatternSyntaxException if the query or a regular expression in it is malformed
+     */
+    public static BooleanQuery parse(String query) {
+        return new BooleanQuery(new Parser(query).parse());
+    }
+
+    /**
+     * @return at least one of them is present in every match, empty if nothing is guaranteed
+     */
+    public List<String> getRequiredLiterals() {
+        return requiredLiterals;
+    }
+
+    /**
+     * @return matches of the query in the text, sorted and not overlapping
+     */
+    public Spans evaluate(CharSequence text) {
+        Spans spans = root.evaluate(new Evaluation(text));
+        return spans == null ? Spans.EMPTY : spans;
+    }
+
+    /**
+     * Sorted, not overlapping {@code [start, end)} ranges of the text.
+     */
+    public static class Spans {
+        static final Spans EMPTY = new Spans(new int[0], new int[0], 0);
+
+        private final int[] starts;
+        private final int[] ends;
+        private final int size;
+
+        private Spans(int[] starts, int[] ends, int size) {
+            this.starts = starts;
+            this.ends = ends;
+            this.size = size;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public int start(int i) {
+            return starts[i];
+        }
+
+        public int end(int i) {
+            return ends[i];
+        }
+
+        /**
+         * @return ranges of both, the overlapping ones joined
+         */
+        Spans union(Spans other) {
+            if (other.size == 0) {
+                return this;
+            }
+            if (size == 0) {
+                return other;
+            }
+            Builder builder = new Builder(size + other.size);
+            int i = 0;
+            int j = 0;
+            while (i < size || j < other.size) {
+                if (j == other.size || (i < size && starts[i] <= other.starts[j])) {
+                    builder.add(starts[i], ends[i]);
+                    i++;
+                } else {
+                    builder.add(other.starts[j], other.ends[j]);
+                    j++;
+                }
+            }
+            return builder.build();
+        }
+
+        /**
+         * Pairs every range of this with the nearest range of the other one.
+         *
+         * @return windows spanning a range of this and a range of the other at most distance chars apart
+         */
+        Spans near(Spans other, int distance) {
+            List<int[]> windows = new ArrayList<>();
+            int first = 0;
+            for (int i = 0; i < size; i++) {
+                // ranges of the other are sorted by both ends, so ones too far to the left stay too far
+                while (first < other.size && other.ends[first] < starts[i] - distance) {
+                    first++;
+                }
+                int nearest = -1;
+                int nearestGap = Integer.MAX_VALUE;
+                for (int j = first; j < other.size && other.starts[j] <= ends[i] + distance; j++) {
+                    int gap = Math.max(0, Math.max(starts[i], other.starts[j]) - Math.min(ends[i], other.ends[j]));
+                    if (gap > nearestGap) {
+                        break; // moving away to the right
+                    }
+                    nearest = j;
+                    nearestGap = gap;
+                }
+                if (nearest != -1) {
+                    windows.add(new int[] {
+                            Math.min(starts[i], other.starts[nearest]), Math.max(ends[i], other.ends[nearest])
+                    });
+                }
+            }
+            windows.sort(Comparator.comparingInt(window -> window[0]));
+            Builder builder = new Builder(windows.size());
+            windows.forEach(window -> builder.add(window[0], window[1]));
+            return builder.build();
+        }
+
+        private static class Builder {
+            private int[] starts;
+            private int[] ends;
+            private int size = 0;
+
+            Builder(int capacity) {
+                starts = new int[Math.max(capacity, 1)];
+                ends = new int[Math.max(capacity, 1)];
+            }
+
+            /**
+             * Ranges come sorted by start, one overlapping the last range extends it.
+             */
+            void add(int start, int end) {
+                if (size > 0 && start < ends[size - 1]) {
+                    ends[size - 1] = Math.max(ends[size - 1], end);
+                    return;
+                }
+                if (size == starts.length) {
+                    starts = Arrays.copyOf(starts, size * 2);
+                    ends = Arrays.copyOf(ends, size * 2);
+                }
+                starts[size] = start;
+                ends[size] = end;
+                size++;
+            }
+
+            Spans build() {
+                return size == 0 ? EMPTY : new Spans(starts, ends, size);
+            }
+        }
+    }
+
+    /**
+     * Evaluation of the query over one text, every operand is scanned at most once.
+     */
+    private record Evaluation(CharSequence text, Map<Operand, Spans> operandSpans) {
+        Evaluation(CharSequence text) {
+            this(text, new IdentityHashMap<>());
+        }
+    }
+
+    private interface Node {
+        /**
+         * @return matches of the node, null if the node is false, empty if it is true with nothing to point to
+         */
+        Spans evaluate(Evaluation evaluation);
+
+        default boolean isTrue(Evaluation evaluation) {
+            return evaluate(evaluation) != null;
+        }
+
+        /**
+         * @return true if the node is true only by pointing to something in the text
+         */
+        boolean isPositive();
+
+        List<String> getRequiredLiterals();
+    }
+
+    private record Operand(QueryPlan plan) implements Node {
+        @Override
+        public Spans evaluate(Evaluation evaluation) {
+            Spans spans = evaluation.operandSpans().computeIfAbsent(this, operand -> {
+                QueryPlan.QueryMatcher matcher = plan.matcher(evaluation.text());
+                Spans.Builder builder = new Spans.Builder(16);
+                while (matcher.find()) {
+                    builder.add(matcher.start(), matcher.end());
+                }
+                return builder.build();
+            });
+            return spans.size() == 0 ? null : spans;
+        }
+
+        @Override
+        public boolean isTrue(Evaluation evaluation) {
+            Spans spans = evaluation.operandSpans().get(this);
+            return spans != null ? spans.size() > 0 : plan.matcher(evaluation.text()).find();
+        }
+
+        @Override
+        public boolean isPositive() {
+            return true;
+        }
+
+        @Override
+        public List<String> getRequiredLiterals() {
+            return plan.getRequiredLiterals();
+        }
+    }
+
+    private record Not(Node operand) implements Node {
+        @Override
+        public Spans evaluate(Evaluation evaluation) {
+            return operand.isTrue(evaluation) ? null : Spans.EMPTY;
+        }
+
+        @Override
+        public boolean isPositive() {
+            return false;
+        }
+
+        @Override
+        public List<String> getRequiredLiterals() {
+            return List.of();
+        }
+    }
+
+    /**
+     * @param operands positive operands first, so the negative ones are checked only when needed
+     */
+    private record And(List<Node> operands) implements Node {
+        @Override
+        public Spans evaluate(Evaluation evaluation) {
+            Spans result = Spans.EMPTY;
+            for (Node operand : operands) {
+                Spans spans = operand.evaluate(evaluation);
+                if (spans == null) {
+                    return null;
+                }
+                result = result.union(spans);
+            }
+            return result;
+        }
+
+        @Override
+        public boolean isPositive() {
+            return operands.stream().anyMatch(Node::isPositive);
+        }
+
+        @Override
+        public List<String> getRequiredLiterals() {
+            return getBestRequiredLiterals(operands);
+        }
+    }
+
+    private record Or(List<Node> operands) implements Node {
+        @Override
+        public Spans evaluate(Evaluation evaluation) {
+            Spans result = null;
+            for (Node operand : operands) {
+                Spans spans = operand.evaluate(evaluation);
+                if (spans != null) {
+                    result = result == null ? spans : result.union(spans);
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public boolean isPositive() {
+            return operands.stream().allMatch(Node::isPositive);
+        }
+
+        @Override
+        public List<String> getRequiredLiterals() {
+            List<String> literals = new ArrayList<>();
+            for (Node operand : operands) {
+                List<String> operandLiterals = operand.getRequiredLiterals();
+                if (operandLiterals.isEmpty()) {
+                    return List.of();
+                }
+                literals.addAll(operandLiterals);
+            }
+            return literals;
+        }
+    }
+
+    private record Near(Node left, Node right, int distance) implements Node {
+        @Override
+        public Spans evaluate(Evaluation evaluation) {
+            Spans leftSpans = left.evaluate(evaluation);
+            if (leftSpans == null) {
+                return null;
+            }
+            Spans rightSpans = right.evaluate(evaluation);
+            if (rightSpans == null) {
+                return null;
+            }
+            Spans windows = leftSpans.near(rightSpans, distance);
+            return windows.size() == 0 ? null : windows;
+        }
+
+        @Override
+        public boolean isPositive() {
+            return true;
+        }
+
+        @Override
+        public List<String> getRequiredLiterals() {
+            return getBestRequiredLiterals(List.of(left, right));
+        }
+    }
+
+    /**
+     * @return literals of the operand pruning the most, the one with the longest shortest literal
+     */
+    private static List<String> getBestRequiredLiterals(List<Node> operands) {
+        List<String> best = List.of();
+        int bestLength = 0;
+        for (Node operand : operands) {
+            List<String> literals = operand.getRequiredLiterals();
+            int shortest = literals.stream().mapToInt(String::length).min().orElse(0);
+            if (shortest > bestLength) {
+                best = literals;
+                bestLength = shortest;
+            }
+        }
+        return best;
+    }
+
+    private static class Parser {
+        private static final String NEAR = "NEAR";
+
+        private final String query;
+        /** Operands by their kind and text, a repeated operand is scanned only once. */
+        private final Map<String, Operand> operands = new HashMap<>();
+        private int position = 0;
+        private Token token;
+
+        private enum Kind { WORD, PHRASE, REGEX, AND, OR, NOT, NEAR, OPEN, CLOSE, END }
+
+        private record Token(Kind kind, String text, int distance, int position) {}
+
+        Parser(String query) {
+            this.query = query;
+        }
+
+        Node parse() {
+            next();
+            Node root = parseOr();
+            if (token.kind() != Kind.END) {
+                throw error("unexpected " + describe(token), token.position());
+            }
+            if (!root.isPositive()) {
+                throw error("NOT can only narrow an AND down, the query has to point to something", 0);
+            }
+            return root;
+        }
+
+        private Node parseOr() {
+            List<Node> alternatives = new ArrayList<>(List.of(parseAnd()));
+            while (token.kind() == Kind.OR) {
+                next();
+                alternatives.add(parseAnd());
+            }
+            if (alternatives.size() == 1) {
+                return alternatives.get(0);
+            }
+            if (!alternatives.stream().allMatch(Node::isPositive)) {
+                throw error("NOT can only narrow an AND down, not be an alternative of OR", 0);
+            }
+            return new Or(alternatives);
+        }
+
+        private Node parseAnd() {
+            List<Node> parts = new ArrayList<>(List.of(parseNear()));
+            while (token.kind() == Kind.AND || isOperandStart(token.kind())) {
+                if (token.kind() == Kind.AND) {
+                    next();
+                }
+                parts.add(parseNear());
+            }
+            if (parts.size() == 1) {
+                return parts.get(0);
+            }
+            parts.sort(Comparator.comparing(part -> !part.isPositive()));
+            return new And(parts);
+        }
+
+        private Node parseNear() {
+            Node left = parseNot();
+            while (token.kind() == Kind.NEAR) {
+                Token near = token;
+                next();
+                Node right = parseNot();
+                if (!left.isPositive() || !right.isPositive()) {
+                    throw error("NEAR needs something to measure the distance to, not NOT", near.position());
+                }
+                left = new Near(left, right, near.distance());
+            }
+            return left;
+        }
+
+        private Node parseNot() {
+            if (token.kind() == Kind.NOT) {
+                next();
+                return new Not(parseNot());
+            }
+            return parseOperand();
+        }
+
+        private Node parseOperand() {
+            Token operand = token;
+            switch (operand.kind()) {
+                case OPEN -> {
+                    next();
+                    Node group = parseOr();
+                    if (token.kind() != Kind.CLOSE) {
+                        throw error("missing )", token.position());
+                    }
+                    next();
+                    return group;
+                }
+                case WORD, PHRASE -> {
+                    next();
+                    return operands.computeIfAbsent("literal:" + operand.text(),
+                            key -> new Operand(QueryPlan.literal(operand.text())));
+                }
+                case REGEX -> {
+                    next();
+                    return operands.computeIfAbsent("regex:" + operand.text(),
+                            key -> new Operand(QueryPlan.compile(operand.text())));
+                }
+                default -> throw error("expected a word, a \"phrase\", a /regex/ or (, found " + describe(operand),
+                        operand.position());
+            }
+        }
+
+        private static boolean isOperandStart(Kind kind) {
+            return kind == Kind.WORD || kind == Kind.PHRASE || kind == Kind.REGEX || kind == Kind.OPEN ||
+                    kind == Kind.NOT;
+        }
+
+        private void next() {
+            while (position < query.length() && Character.isWhitespace(query.charAt(position))) {
+                position++;
+            }
+            int start = position;
+            if (position == query.length()) {
+                token = new Token(Kind.END, "", 0, start);
+                return;
+            }
+            char c = query.charAt(position);
+            if (c == '(' || c == ')') {
+                position++;
+                token = new Token(c == '(' ? Kind.OPEN : Kind.CLOSE, String.valueOf(c), 0, start);
+            } else if (c == '"') {
+                String phrase = readQuoted('"', false);
+                if (phrase.isEmpty()) {
+                    throw error("empty phrase", start);
+                }
+                token = new Token(Kind.PHRASE, phrase, 0, start);
+            } else if (c == '/') {
+                String regex = readQuoted('/', true);
+                if (regex.isEmpty()) {
+                    throw error("empty regular expression", start);
+                }
+                token = new Token(Kind.REGEX, regex, 0, start);
+            } else {
+                while (position < query.length() && !Character.isWhitespace(query.charAt(position)) &&
+                        "()\"".indexOf(query.charAt(position)) == -1) {
+                    position++;
+                }
+                token = toWordToken(query.substring(start, position), start);
+            }
+        }
+
+        private Token toWordToken(String word, int start) {
+            switch (word) {
+                case "AND" -> {
+                    return new Token(Kind.AND, word, 0, start);
+                }
+                case "OR" -> {
+                    return new Token(Kind.OR, word, 0, start);
+                }
+                case "NOT" -> {
+                    return new Token(Kind.NOT, word, 0, start);
+                }
+                default -> {
+                    if (!word.startsWith(NEAR)) {
+                        return new Token(Kind.WORD, word, 0, start);
+                    }
+                }
+            }
+            String distance;
+            if (word.equals(NEAR) && position < query.length() && query.charAt(position) == '(') {
+                int close = query.indexOf(')', position);
+                if (close == -1) {
+                    throw error("missing ) of NEAR", position);
+                }
+                distance = query.substring(position + 1, close).trim();
+                position = close + 1;
+            } else if (word.startsWith(NEAR + "/")) {
+                distance = word.substring(NEAR.length() + 1);
+            } else {
+                return new Token(Kind.WORD, word, 0, start);
+            }
+            try {
+                return new Token(Kind.NEAR, NEAR, Integer.parseUnsignedInt(distance), start);
+            } catch (NumberFormatException e) {
+                throw error("NEAR needs a distance in chars, like NEAR(100)", start);
+            }
+        }
+
+        /**
+         * Reads up to the closing quote, a backslash escapes the quote. In regular expressions other escapes
+         * are kept for the regex itself, in phrases a backslash escapes any char.
+         */
+        private String readQuoted(char quote, boolean isKeepingEscapes) {
+            int start = position;
+            StringBuilder text = new StringBuilder();
+            position++;
+            while (position < query.length()) {
+                char c = query.charAt(position++);
+                if (c == quote) {
+                    return text.toString();
+                }
+                if (c == '\\' && position < query.length()) {
+                    char escaped = query.charAt(position++);
+                    if (isKeepingEscapes && escaped != quote) {
+                        text.append(c);
+                    }
+                    text.append(escaped);
+                } else {
+                    text.append(c);
+                }
+            }
+            throw error("missing closing " + quote, start);
+        }
+
+        private static String describe(Token token) {
+            return token.kind() == Kind.END ? "end of query" : "'" + token.text() + "'";
+        }
+
+        private PatternSyntaxException error(String description, int index) {
+            return new PatternSyntaxException(description, query, index);
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package org.honeyseeker;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Rejects books that can not match before they are decoded and parsed, by looking for the literals required by
+ * the query in the raw bytes of the entry, encoded with the entry charset.
+ * <p>
+ * A literal may be split in the raw bytes by line breaks, markup or escaped characters, so every literal is cut
+ * into segments at whitespace and at XML special chars, and only the segments are required. Books with character
+ * references or CDATA, and books in charsets that are not ASCII compatible, are never rejected.
+ */
+public class BytePrefilter {
+    public static final BytePrefilter NONE = new BytePrefilter(List.of());
+    private static final String SEGMENT_SEPARATORS = "&<>\"'";
+    private static final int MIN_SEGMENT_LENGTH = 2;
+    private static final String[] UNSAFE_MARKERS = {"&#", "<![CDATA["};
+
+    /** Any of the alternatives may match, every segment of an alternative is required for it. */
+    private final List<List<String>> alternatives;
+    private final Map<Charset, Optional<EncodedAlternatives>> encodedByCharset = new ConcurrentHashMap<>();
+
+    private BytePrefilter(List<List<String>> alternatives) {
+        this.alternatives = alternatives;
+    }
+
+    /**
+     * @param requiredLiterals at least one of them is present in every match, empty if nothing is guaranteed
+     */
+    public static BytePrefilter of(List<String> requiredLiterals) {
+        List<List<String>> alternatives = new ArrayList<>();
+        for (String literal : requiredLiterals) {
+            List<String> segments = splitToSegments(literal);
+            if (segments.isEmpty()) {
+                // this alternative can match anything the prefilter can see
+                return new BytePrefilter(List.of());
+            }
+            alternatives.add(segments);
+        }
+        return new BytePrefilter(alternatives);
+    }
+
+    public boolean isEnabled() {
+        return !alternatives.isEmpty();
+    }
+
+    public boolean mayMatch(EntrySource source, Charset charset) {
+        if (!isEnabled()) {
+            return true;
+        }
+        Optional<EncodedAlternatives> encoded = encodedByCharset.computeIfAbsent(charset, this::encode);
+        if (encoded.isEmpty()) {
+            return true;
+        }
+        byte[] buffer = source.getBuffer();
+        int from = source.getOffset();
+        int to = from + source.getLength();
+        for (ByteLiteral marker : encoded.get().unsafeMarkers()) {
+            if (marker.indexOf(buffer, from, to) != -1) {
+                return true;
+            }
+        }
+        for (List<ByteLiteral> segments : encoded.get().alternatives()) {
+            if (segments.stream().allMatch(segment -> segment.indexOf(buffer, from, to) != -1)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Optional<EncodedAlternatives> encode(Charset charset) {
+        if (!isAsciiCompatible(charset)) {
+            return Optional.empty();
+        }
+        List<List<ByteLiteral>> encodedAlternatives = new ArrayList<>();
+        for (List<String> segments : alternatives) {
+            List<ByteLiteral> encodedSegments = new ArrayList<>();
+            for (String segment : segments) {
+                byte[] bytes = encodeStrict(charset, segment);
+                if (bytes == null) {
+                    // the charset can't represent the segment, this alternative never matches
+                    encodedSegments = null;
+                    break;
+                }
+                encodedSegments.add(new ByteLiteral(bytes));
+            }
+            if (encodedSegments != null) {
+                encodedAlternatives.add(encodedSegments);
+            }
+        }
+        List<ByteLiteral> markers = Arrays.stream(UNSAFE_MARKERS)
+                .map(marker -> new ByteLiteral(marker.getBytes(StandardCharsets.US_ASCII)))
+                .toList();
+        return Optional.of(new EncodedAlternatives(encodedAlternatives, markers));
+    }
+
+    private static boolean isAsciiCompatible(Charset charset) {
+        String probe = "<?xml &#;";
+        return Arrays.equals(encodeStrict(charset, probe), probe.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static byte[] encodeStrict(Charset charset, String text) {
+        if (!charset.canEncode()) {
+            return null;
+        }
+        try {
+            CharsetEncoder encoder = charset.newEncoder();
+            ByteBuffer buffer = encoder.encode(CharBuffer.wrap(text));
+            return Arrays.copyOfRange(buffer.array(), buffer.arrayOffset(), buffer.arrayOffset() + buffer.limit());
+        } catch (CharacterCodingException e) {
+            return null;
+        }
+    }
+
+    private static List<String> splitToSegments(String literal) {
+        List<String> segments = new ArrayList<>();
+        StringBuilder segment = new StringBuilder();
+        for (int i = 0; i <= literal.length(); i++) {
+            char c = i < literal.length() ? literal.charAt(i) : ' ';
+            if (Character.isWhitespace(c) || SEGMENT_SEPARATORS.indexOf(c) != -1) {
+                if (segment.length() >= MIN_SEGMENT_LENGTH) {
+                    segments.add(segment.toString());
+                }
+                segment.setLength(0);
+            } else {
+                segment.append(c);
+            }
+        }
+        return segments;
+    }
+
+    private record EncodedAlternatives(List<List<ByteLiteral>> alternatives, List<ByteLiteral> unsafeMarkers) {}
+
+    /** Boyer-Moore-Horspool over bytes. */
+    private static class ByteLiteral {
+        private final byte[] literal;
+        private final int[] shift = new int[256];
+
+        ByteLiteral(byte[] literal) {
+            this.literal = literal;
+            Arrays.fill(shift, literal.length);
+            for (int i = 0; i < literal.length - 1; i++) {
+                shift[literal[i] & 0xFF] = literal.length - 1 - i;
+            }
+        }
+
+        int indexOf(byte[] buffer, int from, int to) {
+            int last = literal.length - 1;
+            byte lastByte = literal[last];
+            int limit = to - literal.length;
+            int position = from;
+            while (position <= limit) {
+                byte b = buffer[position + last];
+                if (b == lastByte && Arrays.equals(buffer, position, position + last, literal, 0, last)) {
+                    return position;
+                }
+                position += shift[b & 0xFF];
+            }
+            return -1;
+        }
+    }
+}
@@ -5,6 +5,9 @@ import org.ini4j.Ini;
 
 import java.io.File;
 import java.net.URISyntaxException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
 
 @SuppressWarnings({"CallToPrintStackTrace", "MismatchedQueryAndUpdateOfCollection"})
 @Data
@@ -13,6 +16,21 @@ public class Config {
     private String currentFile = "123-456.zip";
     private String currentEntry = "1.fb2";
     private String searchQuery = "text to search";
+    private boolean booleanQuery = false; // read queries as AND / OR / NOT / NEAR(n) expressions, not regexes
+    // like "author=Петров; year=1900-1950", books not passing it are skipped unread; with an empty query it is
+    // the whole search
+    private String metadataFilter = "";
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private boolean useIndex = false;
+    private String indexFolder = ""; // empty to keep indexes next to archives
+    private String textCacheFolder = ""; // empty to disable the text cache
+    private int textCacheSizeMb = 4096;
+    private boolean preRender = false; // render the HTML of every hit in the background
+    private int lookAhead = 0; // hits to find in advance in the background, 0 to disable
+    private int bookTimeBudgetMs = 0; // skip a book taking longer to search, 0 for no limit
+    private int maxMatchesPerBook = 1000; // matches kept with their context, the rest only counted, 0 for no limit
+    // searched in one pass instead of searchQuery, matches are tagged with the names; not saved
+    private Map<String, String> namedQueries = new LinkedHashMap<>();
 
     @SuppressWarnings("ResultOfMethodCallIgnored")
     public String save() {
@@ -24,6 +42,17 @@ public class Config {
             ini.put("general", "file", currentFile);
             ini.put("general", "entry", currentEntry);
             ini.put("general", "query", searchQuery);
+            ini.put("general", "boolean_query", booleanQuery);
+            ini.put("general", "metadata_filter", metadataFilter);
+            ini.put("general", "threads", threads);
+            ini.put("general", "index", useIndex);
+            ini.put("general", "index_folder", indexFolder);
+            ini.put("general", "text_cache_folder", textCacheFolder);
+            ini.put("general", "text_cache_size_mb", textCacheSizeMb);
+            ini.put("general", "pre_render", preRender);
+            ini.put("general", "look_ahead", lookAhead);
+            ini.put("general", "book_time_budget_ms", bookTimeBudgetMs);
+            ini.put("general", "max_matches_per_book", maxMatchesPerBook);
             ini.store();
             return "saved config";
         } catch (Exception e) {
@@ -39,6 +68,32 @@ public class Config {
             currentFile = ini.get("general", "file");
             currentEntry = ini.get("general", "entry");
             searchQuery = ini.get("general", "query");
+            booleanQuery = Boolean.TRUE.equals(ini.get("general", "boolean_query", Boolean.class));
+            metadataFilter = Objects.requireNonNullElse(ini.get("general", "metadata_filter"), "");
+            Integer threadsValue = ini.get("general", "threads", Integer.class);
+            if (threadsValue != null && threadsValue > 0) {
+                threads = threadsValue;
+            }
+            useIndex = Boolean.TRUE.equals(ini.get("general", "index", Boolean.class));
+            indexFolder = Objects.requireNonNullElse(ini.get("general", "index_folder"), "");
+            textCacheFolder = Objects.requireNonNullElse(ini.get("general", "text_cache_folder"), "");
+            Integer textCacheSizeValue = ini.get("general", "text_cache_size_mb", Integer.class);
+            if (textCacheSizeValue != null && textCacheSizeValue > 0) {
+                textCacheSizeMb = textCacheSizeValue;
+            }
+            preRender = Boolean.TRUE.equals(ini.get("general", "pre_render", Boolean.class));
+            Integer lookAheadValue = ini.get("general", "look_ahead", Integer.class);
+            if (lookAheadValue != null && lookAheadValue >= 0) {
+                lookAhead = lookAheadValue;
+            }
+            Integer bookTimeBudgetValue = ini.get("general", "book_time_budget_ms", Integer.class);
+            if (bookTimeBudgetValue != null && bookTimeBudgetValue >= 0) {
+                bookTimeBudgetMs = bookTimeBudgetValue;
+            }
+            Integer maxMatchesValue = ini.get("general", "max_matches_per_book", Integer.class);
+            if (maxMatchesValue != null && maxMatchesValue >= 0) {
+                maxMatchesPerBook = maxMatchesValue;
+            }
             return "loaded config";
         } catch (Exception e) {
             e.printStackTrace();
@@ -0,0 +1,59 @@
+package org.honeyseeker;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes one RFC 4180 row per match: archive, entry, genres separated by ';', offset of the match in the book
+ * text and in the XML, position and length of the match in the context, the context itself and the name of the
+ * query that matched, empty for a plain search.
+ */
+public class CsvResultSink implements ResultSink {
+    private static final String HEADER = "archive,entry,genres,offset,xml_offset,position,length,context,query\r\n";
+
+    private final Writer writer;
+    private boolean isHeaderWritten = false;
+
+    public CsvResultSink(Writer writer) {
+        this.writer = writer;
+    }
+
+    @Override
+    public void onResult(SearchResult result) throws IOException {
+        StringBuilder rows = new StringBuilder();
+        if (!isHeaderWritten) {
+            rows.append(HEADER);
+            isHeaderWritten = true;
+        }
+        String genres = String.join(";", result.getGenres());
+        for (SearchResult.SearchEncounter match : result.getMatches()) {
+            appendField(rows, result.getCurrentFile()).append(',');
+            appendField(rows, result.getCurrentEntry()).append(',');
+            appendField(rows, genres).append(',');
+            rows.append(match.getOffset()).append(',');
+            rows.append(match.getXmlOffset()).append(',');
+            rows.append(match.getTargetPosition()).append(',');
+            rows.append(match.getTargetLen()).append(',');
+            appendField(rows, match.getContext()).append(',');
+            appendField(rows, match.getQuery()).append("\r\n");
+        }
+        writer.write(rows.toString());
+        writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+
+    private static StringBuilder appendField(StringBuilder rows, String value) {
+        if (value == null) {
+            return rows;
+        }
+        if (value.indexOf(',') == -1 && value.indexOf('"') == -1 && value.indexOf('\n') == -1 &&
+                value.indexOf('\r') == -1) {
+            return rows.append(value);
+        }
+        return rows.append('"').append(value.replace("\"", "\"\"")).append('"');
+    }
+}
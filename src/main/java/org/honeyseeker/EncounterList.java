@@ -0,0 +1,114 @@
+package org.honeyseeker;
+
+import javax.swing.*;
+import java.awt.*;
+import java.util.List;
+
+/**
+ * Preview of the encounters of a hit. Only the visible encounters are rendered, and the list hands them to Swing a
+ * page at a time as it is scrolled down, so a book with thousands of matches is laid out a page, not a book, at once.
+ */
+public class EncounterList extends JList<SearchResult.SearchEncounter> {
+    private static final int PAGE_SIZE = 50;
+    /** Encounters left below the visible ones when the next page is loaded. */
+    private static final int PREFETCH = 10;
+
+    private final PagedModel model = new PagedModel();
+    private boolean isHighlighting = true;
+    private int textWidth = 0;
+
+    public EncounterList() {
+        setModel(model);
+        setCellRenderer(new Renderer());
+        setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+    }
+
+    /**
+     * @param textWidth width to wrap the context at, in pixels, 0 not to wrap
+     */
+    public void show(List<SearchResult.SearchEncounter> encounters, boolean isHighlighting, int textWidth) {
+        this.isHighlighting = isHighlighting;
+        this.textWidth = textWidth;
+        model.setEncounters(encounters);
+        ensureIndexIsVisible(0);
+    }
+
+    /**
+     * Loads the next page if the end of the loaded ones is about to come into view, call on every scroll.
+     */
+    public void loadVisiblePages() {
+        while (model.hasMore() && getLastVisibleIndex() >= model.getSize() - PREFETCH) {
+            model.loadPage();
+        }
+    }
+
+    private static class PagedModel extends AbstractListModel<SearchResult.SearchEncounter> {
+        private List<SearchResult.SearchEncounter> encounters = List.of();
+        private int loaded = 0;
+
+        void setEncounters(List<SearchResult.SearchEncounter> encounters) {
+            int removed = loaded;
+            this.encounters = encounters;
+            loaded = 0;
+            if (removed > 0) {
+                fireIntervalRemoved(this, 0, removed - 1);
+            }
+            loadPage();
+        }
+
+        boolean hasMore() {
+            return loaded < encounters.size();
+        }
+
+        void loadPage() {
+            int from = loaded;
+            loaded = Math.min(encounters.size(), loaded + PAGE_SIZE);
+            if (loaded > from) {
+                fireIntervalAdded(this, from, loaded - 1);
+            }
+        }
+
+        @Override
+        public int getSize() {
+            return loaded;
+        }
+
+        @Override
+        public SearchResult.SearchEncounter getElementAt(int index) {
+            return encounters.get(index);
+        }
+    }
+
+    private class Renderer extends DefaultListCellRenderer {
+        Renderer() {
+            setVerticalAlignment(TOP);
+        }
+
+        @Override
+        public Component getListCellRendererComponent(JList<?> list, Object value, int index, boolean isSelected,
+                                                      boolean cellHasFocus) {
+            super.getListCellRendererComponent(list, "", index, false, false);
+            SearchResult.SearchEncounter encounter = (SearchResult.SearchEncounter) value;
+            String body = textWidth > 0 ? "<body style='width: " + textWidth + "px'>" : "<body>";
+            setText("<html> " + body + " " + highlight(encounter) + "</body> </html>");
+            setBorder(BorderFactory.createCompoundBorder(
+                    BorderFactory.createMatteBorder(0, 0, 1, 0, Color.GRAY),
+                    BorderFactory.createEmptyBorder(4, 0, 4, 0)));
+            return this;
+        }
+
+        private String highlight(SearchResult.SearchEncounter encounter) {
+            if (!isHighlighting) {
+                return encounter.getContext();
+            }
+
+            String before = encounter.getContext().substring(0, encounter.getTargetPosition());
+            String selected = encounter.getContext().substring(
+                    encounter.getTargetPosition(), encounter.getTargetPosition() + encounter.getTargetLen()
+            );
+            String after = encounter.getContext().substring(encounter.getTargetPosition() + encounter.getTargetLen());
+
+            return before + "<b>" + selected + "</b>" + after;
+        }
+    }
+}
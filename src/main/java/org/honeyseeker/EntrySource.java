@@ -0,0 +1,196 @@
+package org.honeyseeker;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import org.apache.commons.io.ByteOrderMark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.ZipEntry;
+
+/**
+ * Content of a single archive entry, inflated exactly once into a buffer reused by the current thread.
+ * Charset detection, decoding and any other byte level processing work on this buffer instead of
+ * reopening the entry. The buffer is only valid until the next {@link #read} on the same thread, a partial read
+ * followed by {@link #readRest} still inflates every byte once.
+ */
+@Getter
+public class EntrySource {
+    private static final int MIN_BUFFER_SIZE = 64 * 1024;
+    /** Bytes inflated at a time while looking for the end of a partial read. */
+    private static final int PARTIAL_READ_SIZE = 8 * 1024;
+    // longest marks first, UTF-32LE starts with the UTF-16LE mark
+    static final ByteOrderMark[] BYTE_ORDER_MARKS = {
+            ByteOrderMark.UTF_32LE, ByteOrderMark.UTF_32BE, ByteOrderMark.UTF_8, ByteOrderMark.UTF_16LE,
+            ByteOrderMark.UTF_16BE
+    };
+    private static final ThreadLocal<byte[]> BUFFER = ThreadLocal.withInitial(() -> new byte[MIN_BUFFER_SIZE]);
+
+    private final String name;
+    private final byte[] buffer;
+    /** Start of the content in the buffer, byte order mark excluded. */
+    private final int offset;
+    /** Length of the content in the buffer, byte order mark excluded. */
+    private final int length;
+    /** Bytes inflated into the buffer, a partial read may have inflated past the content. */
+    @Getter(AccessLevel.NONE)
+    private final int inflated;
+    /** Rest of the entry still to inflate, null if the content is the whole entry. */
+    @Getter(AccessLevel.NONE)
+    private final InputStream rest;
+
+    private EntrySource(String name, byte[] buffer, int offset, int length, int inflated, InputStream rest) {
+        this.name = name;
+        this.buffer = buffer;
+        this.offset = offset;
+        this.length = length;
+        this.inflated = inflated;
+        this.rest = rest;
+    }
+
+    public static EntrySource read(MappedZipFile zip, ZipEntry entry) throws IOException {
+        byte[] buffer = BUFFER.get();
+        if (entry.getSize() >= buffer.length) {
+            // one spare byte to see the end of stream without growing
+            buffer = new byte[(int) Math.min(entry.getSize() + 1, Integer.MAX_VALUE - 8)];
+        }
+        try (InputStream is = zip.getInputStream(entry)) {
+            return inflate(entry.getName(), is, buffer, 0, -1);
+        }
+    }
+
+    /**
+     * Same as {@link #read} but inflates only up to the end of the first {@code marker}, a few KB for
+     * {@code </description>} in most books. Without the marker, also in charsets it can't be seen in as ASCII,
+     * the entry is read to the end. The rest of the entry is inflated by {@link #readRest}, or dropped by
+     * {@link #discardRest}, one of them has to be called.
+     */
+    public static EntrySource readUpTo(MappedZipFile zip, ZipEntry entry, byte[] marker) throws IOException {
+        InputStream is = zip.getInputStream(entry);
+        try {
+            int inflated = 0;
+            byte[] buffer = BUFFER.get();
+            while (true) {
+                if (inflated == buffer.length) {
+                    buffer = grow(buffer);
+                }
+                int bytesRead = is.read(buffer, inflated, Math.min(buffer.length - inflated, PARTIAL_READ_SIZE));
+                if (bytesRead == -1) {
+                    is.close();
+                    return toSource(entry.getName(), buffer, inflated, inflated, null);
+                }
+                int markerStart = indexOf(buffer, Math.max(0, inflated - marker.length + 1), inflated + bytesRead,
+                        marker);
+                inflated += bytesRead;
+                if (markerStart != -1) {
+                    return toSource(entry.getName(), buffer, markerStart + marker.length, inflated, is);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            is.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the whole entry, the bytes inflated so far are kept and only the rest is inflated
+     */
+    public EntrySource readRest() throws IOException {
+        if (rest == null) {
+            return this;
+        }
+        try (InputStream is = rest) {
+            return inflate(name, is, buffer, inflated, offset);
+        }
+    }
+
+    /**
+     * Closes the rest of a partial read without inflating it.
+     */
+    public void discardRest() throws IOException {
+        if (rest != null) {
+            rest.close();
+        }
+    }
+
+    /**
+     * Inflates to the end of the stream, after the bytes already in the buffer.
+     *
+     * @param bomLength length of the byte order mark if it is already known, otherwise -1
+     */
+    private static EntrySource inflate(String name, InputStream is, byte[] buffer, int inflated, int bomLength)
+            throws IOException {
+        while (true) {
+            if (inflated == buffer.length) {
+                buffer = grow(buffer);
+            }
+            int bytesRead = is.read(buffer, inflated, buffer.length - inflated);
+            if (bytesRead == -1) {
+                break;
+            }
+            inflated += bytesRead;
+        }
+        if (bomLength == -1) {
+            return toSource(name, buffer, inflated, inflated, null);
+        }
+        BUFFER.set(buffer);
+        return new EntrySource(name, buffer, bomLength, inflated - bomLength, inflated, null);
+    }
+
+    private static EntrySource toSource(String name, byte[] buffer, int end, int inflated, InputStream rest) {
+        BUFFER.set(buffer);
+        int bomLength = getByteOrderMarkLength(buffer, end);
+        return new EntrySource(name, buffer, bomLength, end - bomLength, inflated, rest);
+    }
+
+    private static byte[] grow(byte[] buffer) {
+        return Arrays.copyOf(buffer, (int) Math.min((long) buffer.length * 2, Integer.MAX_VALUE - 8));
+    }
+
+    public byte[] getStart(int numBytes) {
+        return Arrays.copyOfRange(buffer, offset, offset + Math.min(numBytes, length));
+    }
+
+    /**
+     * Decodes the content joining lines with a space, the way the whole book text has always been read.
+     */
+    public String decode(Charset charset) {
+        String text = new String(buffer, offset, length, charset);
+        StringBuilder joined = new StringBuilder(text.length());
+        int lineStart = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\n' || c == '\r') {
+                joined.append(text, lineStart, i);
+                if (c == '\r' && i + 1 < text.length() && text.charAt(i + 1) == '\n') {
+                    i++;
+                }
+                lineStart = i + 1;
+                if (lineStart < text.length()) {
+                    joined.append(' ');
+                }
+            }
+        }
+        return joined.append(text, lineStart, text.length()).toString();
+    }
+
+    private static int indexOf(byte[] buffer, int from, int to, byte[] marker) {
+        for (int i = from; i <= to - marker.length; i++) {
+            if (Arrays.equals(buffer, i, i + marker.length, marker, 0, marker.length)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int getByteOrderMarkLength(byte[] buffer, int length) {
+        for (ByteOrderMark mark : BYTE_ORDER_MARKS) {
+            if (mark.length() <= length && Arrays.equals(buffer, 0, mark.length(), mark.getBytes(), 0, mark.length())) {
+                return mark.length();
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,275 @@
+package org.honeyseeker;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Command line entry point for scans without a display. It drives {@link Searcher} directly and never touches
+ * AWT or Swing, so it starts fast and runs on headless hosts:
+ * <pre>
+ * java -cp HoneySeeker.jar org.honeyseeker.HeadlessMain [options] &lt;folder&gt; &lt;query&gt;
+ * </pre>
+ * Exit code is 0 if anything was found, 1 if nothing was found, 2 on bad arguments or a search error and 130 if
+ * the scan was interrupted.
+ */
+public class HeadlessMain implements Logger {
+    private static final int EXIT_FOUND = 0;
+    private static final int EXIT_NOT_FOUND = 1;
+    private static final int EXIT_ERROR = 2;
+    private static final int EXIT_INTERRUPTED = 130;
+    private static final long PROGRESS_PERIOD_MILLIS = 5000;
+    private static final String USAGE = """
+            usage: HeadlessMain [options] <folder> <query>
+                   HeadlessMain [options] --query <name>=<query>... <folder>
+                   HeadlessMain [options] --metadata <filter> <folder>
+              --query <name>=<query>   search several named queries in one pass, matches are tagged with the names
+              --file <zip>             start from this archive
+              --entry <fb2>            start from this entry of the start archive
+              --metadata <filter>      search only books passing a filter like "author=Петров; year=1900-1950",
+                                       fields are author, title, genre, lang and year; alone it lists the books
+              --boolean                read queries as AND / OR / NOT / NEAR(n) expressions, not regexes
+              --backwards              walk the library backwards
+              --first                  stop at the first book with hits
+              --threads <n>            number of worker threads
+              --format text|jsonl|csv  output format, default text
+              --index                  use trigram indexes, building missing ones
+              --index-folder <dir>     keep indexes in this folder instead of next to archives
+              --text-cache-folder <dir> cache extracted book text in this folder
+              --book-time-budget <ms>  skip books taking longer to search, 0 for no limit
+              --max-matches <n>        matches of a book to print, the rest are only counted, 0 for no limit
+              --quiet                  don't print progress""";
+
+    private static volatile boolean isShuttingDown = false;
+
+    private final PrintStream out;
+    private final PrintStream progress;
+    private final boolean isQuiet;
+    private long lastProgressTime = 0;
+
+    private HeadlessMain(PrintStream out, PrintStream progress, boolean isQuiet) {
+        this.out = out;
+        this.progress = progress;
+        this.isQuiet = isQuiet;
+    }
+
+    public static void main(String[] args) {
+        int exitCode = run(args);
+        // exiting from inside the shutdown sequence would block forever
+        if (!isShuttingDown) {
+            System.exit(exitCode);
+        }
+    }
+
+    private static int run(String[] args) {
+        Config config = new Config();
+        config.setCurrentFile("");
+        config.setCurrentEntry("");
+        boolean isBackwards = false;
+        boolean isFirstOnly = false;
+        boolean isQuiet = false;
+        String format = "text";
+        List<String> positional = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--file" -> config.setCurrentFile(getValue(args, ++i));
+                    case "--entry" -> config.setCurrentEntry(getValue(args, ++i));
+                    case "--query" -> {
+                        String namedQuery = getValue(args, ++i);
+                        int separator = namedQuery.indexOf('=');
+                        if (separator < 1) {
+                            throw new IllegalArgumentException("--query needs <name>=<query>");
+                        }
+                        config.getNamedQueries().put(namedQuery.substring(0, separator),
+                                namedQuery.substring(separator + 1));
+                    }
+                    case "--metadata" -> {
+                        String filter = getValue(args, ++i);
+                        MetadataFilter.parse(filter);
+                        config.setMetadataFilter(filter);
+                    }
+                    case "--boolean" -> config.setBooleanQuery(true);
+                    case "--backwards" -> isBackwards = true;
+                    case "--first" -> isFirstOnly = true;
+                    case "--threads" -> config.setThreads(Integer.parseInt(getValue(args, ++i)));
+                    case "--format" -> format = getValue(args, ++i);
+                    case "--index" -> config.setUseIndex(true);
+                    case "--index-folder" -> config.setIndexFolder(getValue(args, ++i));
+                    case "--text-cache-folder" -> config.setTextCacheFolder(getValue(args, ++i));
+                    case "--book-time-budget" -> config.setBookTimeBudgetMs(Integer.parseInt(getValue(args, ++i)));
+                    case "--max-matches" -> config.setMaxMatchesPerBook(Integer.parseInt(getValue(args, ++i)));
+                    case "--quiet" -> isQuiet = true;
+                    case "--help", "-h" -> {
+                        System.out.println(USAGE);
+                        return EXIT_FOUND;
+                    }
+                    default -> {
+                        if (args[i].startsWith("--")) {
+                            throw new IllegalArgumentException("unknown option " + args[i]);
+                        }
+                        positional.add(args[i]);
+                    }
+                }
+            }
+            boolean isQueryOptional = !config.getMetadataFilter().isEmpty();
+            if (config.getNamedQueries().isEmpty() && positional.size() != 2 &&
+                    !(isQueryOptional && positional.size() == 1)) {
+                throw new IllegalArgumentException("expected a folder and a query");
+            }
+            if (!config.getNamedQueries().isEmpty() && positional.size() != 1) {
+                throw new IllegalArgumentException("expected a folder only, queries are given by --query");
+            }
+            if (!new File(positional.get(0)).isDirectory()) {
+                throw new IllegalArgumentException("folder " + positional.get(0) + " not exists or not a folder");
+            }
+            if (config.getThreads() < 1) {
+                throw new IllegalArgumentException("thread count has to be positive");
+            }
+            if (config.getBookTimeBudgetMs() < 0) {
+                throw new IllegalArgumentException("time budget can't be negative");
+            }
+            if (config.getMaxMatchesPerBook() < 0) {
+                throw new IllegalArgumentException("match limit can't be negative");
+            }
+            if (!List.of("text", "jsonl", "csv").contains(format)) {
+                throw new IllegalArgumentException("unknown format " + format);
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println("error: " + e.getMessage());
+            System.err.println(USAGE);
+            return EXIT_ERROR;
+        }
+        config.setFolder(positional.get(0));
+        config.setSearchQuery(positional.size() > 1 ? positional.get(1) : "");
+
+        // machine readable output must stay clean, progress goes to stderr then
+        PrintStream out = new PrintStream(System.out, true, StandardCharsets.UTF_8);
+        PrintStream progress = format.equals("text") ? out : new PrintStream(System.err, true, StandardCharsets.UTF_8);
+        HeadlessMain app = new HeadlessMain(out, progress, isQuiet);
+        Searcher searcher = new Searcher(app);
+        Thread mainThread = Thread.currentThread();
+        Thread stopHook = new Thread(() -> {
+            isShuttingDown = true;
+            searcher.shouldStop = true;
+            try {
+                mainThread.join();
+            } catch (InterruptedException ignored) {
+            }
+        });
+        Runtime.getRuntime().addShutdownHook(stopHook);
+        try {
+            if (isFirstOnly) {
+                SearchResult result = searcher.doSearch(config, isBackwards);
+                if (result.getEncounters().isEmpty()) {
+                    return EXIT_NOT_FOUND;
+                }
+                try (ResultSink sink = app.createSink(format)) {
+                    sink.onResult(result);
+                }
+                return EXIT_FOUND;
+            }
+            int hitCount;
+            try (ResultSink sink = app.createSink(format)) {
+                hitCount = searcher.searchAll(config, isBackwards, sink);
+            }
+            app.logInfo("books with hits: " + hitCount);
+            return hitCount > 0 ? EXIT_FOUND : EXIT_NOT_FOUND;
+        } catch (InterruptedByUserSearcherException e) {
+            app.logWarn("interrupted at " + e.getCurrentFile() + " / " + e.getCurrentEntry());
+            return EXIT_INTERRUPTED;
+        } catch (SearcherException e) {
+            app.logWarn("error: " + e.getMessage());
+            return EXIT_ERROR;
+        } catch (PatternSyntaxException e) {
+            app.logWarn("bad query: " + e.getMessage());
+            return EXIT_ERROR;
+        } catch (IOException e) {
+            app.logWarn("error writing results: " + e);
+            return EXIT_ERROR;
+        } finally {
+            try {
+                Runtime.getRuntime().removeShutdownHook(stopHook);
+            } catch (IllegalStateException ignored) {
+                // already shutting down
+            }
+        }
+    }
+
+    private static String getValue(String[] args, int i) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException(args[i - 1] + " needs a value");
+        }
+        return args[i];
+    }
+
+    private ResultSink createSink(String format) {
+        // the sinks don't own stdout
+        Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8) {
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        };
+        return switch (format) {
+            case "jsonl" -> new JsonlResultSink(writer);
+            case "csv" -> new CsvResultSink(writer);
+            default -> result -> {
+                out.println(result.getCurrentFile() + " / " + result.getCurrentEntry() + " " +
+                        result.getGenres() + (result.getMatchedQueries().isEmpty() ? "" :
+                        " " + result.getMatchedQueries()));
+                for (SearchResult.SearchEncounter match : result.getMatches()) {
+                    out.println("    " + (match.getQuery() == null ? "" : match.getQuery() + ": ") +
+                            match.getContext());
+                }
+                int uncollected = result.getMatchCount() - result.getMatches().size();
+                if (uncollected > 0) {
+                    out.println("    ... and " + uncollected + " more matches");
+                }
+            };
+        };
+    }
+
+    @Override
+    public void logInfo(List<String> lines) {
+        if (!isQuiet) {
+            lines.forEach(progress::println);
+        }
+    }
+
+    @Override
+    public void logInfo(String line) {
+        if (!isQuiet) {
+            progress.println(line);
+        }
+    }
+
+    @Override
+    public void logProgress(SearchProgress searchProgress) {
+        if (isQuiet) {
+            return;
+        }
+        // a line every few seconds is enough for a log file
+        long now = System.currentTimeMillis();
+        if (searchProgress.isFinished() || now - lastProgressTime >= PROGRESS_PERIOD_MILLIS) {
+            lastProgressTime = now;
+            progress.println("progress: " + searchProgress.describe());
+        }
+    }
+
+    @Override
+    public void logWarn(List<String> lines) {
+        lines.forEach(System.err::println);
+    }
+
+    @Override
+    public void logWarn(String line) {
+        System.err.println(line);
+    }
+}
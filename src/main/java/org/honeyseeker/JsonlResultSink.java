@@ -0,0 +1,104 @@
+package org.honeyseeker;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes one JSON object per book with hits:
+ * {@code {"archive":..., "entry":..., "genres":[...], "matches":[{"context":..., "offset":..., "xml_offset":...,
+ * "position":..., "length":...}]}}
+ * <p>
+ * Named query searches also get the names of the queries that matched in {@code "queries":[...]} after the
+ * genres and the name of the query of every match in {@code "query"}.
+ */
+public class JsonlResultSink implements ResultSink {
+    private final Writer writer;
+
+    public JsonlResultSink(Writer writer) {
+        this.writer = writer;
+    }
+
+    @Override
+    public void onResult(SearchResult result) throws IOException {
+        StringBuilder line = new StringBuilder();
+        line.append("{\"archive\":");
+        appendString(line, result.getCurrentFile());
+        line.append(",\"entry\":");
+        appendString(line, result.getCurrentEntry());
+        line.append(",\"genres\":[");
+        for (int i = 0; i < result.getGenres().size(); i++) {
+            if (i > 0) {
+                line.append(',');
+            }
+            appendString(line, result.getGenres().get(i));
+        }
+        line.append(']');
+        if (!result.getMatchedQueries().isEmpty()) {
+            line.append(",\"queries\":[");
+            for (int i = 0; i < result.getMatchedQueries().size(); i++) {
+                if (i > 0) {
+                    line.append(',');
+                }
+                appendString(line, result.getMatchedQueries().get(i));
+            }
+            line.append(']');
+        }
+        line.append(",\"matches\":[");
+        boolean isFirst = true;
+        for (SearchResult.SearchEncounter match : result.getMatches()) {
+            if (!isFirst) {
+                line.append(',');
+            }
+            isFirst = false;
+            line.append("{\"context\":");
+            appendString(line, match.getContext());
+            line.append(",\"offset\":").append(match.getOffset());
+            line.append(",\"xml_offset\":").append(match.getXmlOffset());
+            line.append(",\"position\":").append(match.getTargetPosition());
+            line.append(",\"length\":").append(match.getTargetLen());
+            if (match.getQuery() != null) {
+                line.append(",\"query\":");
+                appendString(line, match.getQuery());
+            }
+            line.append('}');
+        }
+        line.append(']');
+        if (result.getMatchCount() > result.getMatches().size()) {
+            line.append(",\"match_count\":").append(result.getMatchCount());
+        }
+        line.append("}\n");
+        writer.write(line.toString());
+        writer.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+
+    private static void appendString(StringBuilder line, String value) {
+        if (value == null) {
+            line.append("null");
+            return;
+        }
+        line.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"' -> line.append("\\\"");
+                case '\\' -> line.append("\\\\");
+                case '\n' -> line.append("\\n");
+                case '\r' -> line.append("\\r");
+                case '\t' -> line.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        line.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        line.append(c);
+                    }
+                }
+            }
+        }
+        line.append('"');
+    }
+}
@@ -0,0 +1,124 @@
+package org.honeyseeker;
+
+import lombok.Getter;
+import net.greypanther.natsort.CaseInsensitiveSimpleNaturalComparator;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.ZipEntry;
+
+/**
+ * Sorted listing of a library folder: its archives and the fb2 entries of every archive opened so far.
+ * Resuming a search finds the start point here by binary search instead of listing, sorting and skipping again,
+ * so the cost doesn't grow with how deep into the library the start point is. The archive list is rebuilt when
+ * the folder is modified and an entry table when its archive is, both noticed by modification time.
+ */
+public class LibrarySnapshot {
+    private static final Comparator<String> NAME_ORDER = CaseInsensitiveSimpleNaturalComparator.getInstance();
+
+    @Getter
+    private final File folder;
+    private final long folderLastModified;
+    /** Archives in natural order of their names. */
+    private final List<File> archives;
+    private final List<String> archiveNames;
+    private final Map<File, EntryTable> entryTables = new ConcurrentHashMap<>();
+
+    private record EntryTable(long lastModified, long length, List<String> names) {}
+
+    private LibrarySnapshot(File folder) {
+        this.folder = folder;
+        // taken before listing, a change during the listing makes the next search list again
+        this.folderLastModified = folder.lastModified();
+        File[] zipFiles = folder.listFiles((dir, name) -> name.toLowerCase().endsWith(".zip"));
+        if (zipFiles == null) {
+            zipFiles = new File[0];
+        }
+        Arrays.sort(zipFiles, Comparator.comparing(File::getName, NAME_ORDER));
+        archives = List.of(zipFiles);
+        archiveNames = archives.stream().map(File::getName).toList();
+    }
+
+    /**
+     * @return the snapshot if the folder hasn't changed since it was taken, otherwise a fresh one
+     */
+    public static LibrarySnapshot update(LibrarySnapshot snapshot, File folder) {
+        if (snapshot != null && snapshot.folder.equals(folder) &&
+                snapshot.folderLastModified == folder.lastModified()) {
+            return snapshot;
+        }
+        return new LibrarySnapshot(folder);
+    }
+
+    public List<File> getArchives(boolean isBackwards) {
+        return isBackwards ? archives.reversed() : archives;
+    }
+
+    /**
+     * @return index of the archive in {@link #getArchives} or -1 if there is no such archive
+     */
+    public int indexOfArchive(String name, boolean isBackwards) {
+        return toWalkIndex(indexOf(archiveNames, name), archiveNames.size(), isBackwards);
+    }
+
+    /**
+     * @return fb2 entries of the opened archive in walk order, sorted only the first time the archive is seen
+     */
+    public List<String> getEntries(File archive, MappedZipFile zip, boolean isBackwards) {
+        long lastModified = archive.lastModified();
+        long length = archive.length();
+        EntryTable table = entryTables.get(archive);
+        if (table == null || table.lastModified() != lastModified || table.length() != length) {
+            List<String> names = new ArrayList<>();
+            for (ZipEntry entry : zip.getEntries()) {
+                if (!entry.isDirectory() && entry.getName().endsWith(".fb2")) {
+                    names.add(entry.getName());
+                }
+            }
+            names.sort(NAME_ORDER);
+            table = new EntryTable(lastModified, length, Collections.unmodifiableList(names));
+            entryTables.put(archive, table);
+        }
+        return isBackwards ? table.names().reversed() : table.names();
+    }
+
+    /**
+     * @param entries list returned by {@link #getEntries} for the same direction
+     * @return index of the entry in the list or -1 if there is no such entry
+     */
+    public static int indexOfEntry(List<String> entries, String name, boolean isBackwards) {
+        List<String> sorted = isBackwards ? entries.reversed() : entries;
+        return toWalkIndex(indexOf(sorted, name), sorted.size(), isBackwards);
+    }
+
+    private static int toWalkIndex(int index, int size, boolean isBackwards) {
+        return index == -1 || !isBackwards ? index : size - 1 - index;
+    }
+
+    /**
+     * Binary search for the exact name, the order ignores case, so its equals may lie on both sides of a hit.
+     */
+    private static int indexOf(List<String> sorted, String name) {
+        int hit = Collections.binarySearch(sorted, name, NAME_ORDER);
+        if (hit < 0) {
+            return -1;
+        }
+        for (int i = hit; i >= 0 && NAME_ORDER.compare(sorted.get(i), name) == 0; i--) {
+            if (sorted.get(i).equals(name)) {
+                return i;
+            }
+        }
+        for (int i = hit + 1; i < sorted.size() && NAME_ORDER.compare(sorted.get(i), name) == 0; i++) {
+            if (sorted.get(i).equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,49 @@
+package org.honeyseeker;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Last lines of the log in a fixed size ring buffer. Any thread may append, appending neither copies the log nor
+ * touches the UI, a {@link LogView} picks the new lines up later in one batch.
+ */
+public class LogModel {
+    private final String[] lines;
+    /** Lines appended since the start, the newest one is at {@code (appended - 1) % capacity}. */
+    private long appended = 0;
+
+    /**
+     * @param appended lines appended since the start when the slice was taken, pass it to the next {@link #since}
+     * @param lines lines appended after the previous slice, only the last capacity ones if more were appended
+     * @param isGap true if some lines were overwritten before being taken
+     */
+    public record Slice(long appended, List<String> lines, boolean isGap) {}
+
+    public LogModel(int capacity) {
+        lines = new String[capacity];
+    }
+
+    public int getCapacity() {
+        return lines.length;
+    }
+
+    public synchronized void append(Collection<String> newLines) {
+        for (String line : newLines) {
+            lines[(int) (appended % lines.length)] = line;
+            appended++;
+        }
+    }
+
+    /**
+     * @param taken {@link Slice#appended} of the previous slice, 0 for the first one
+     */
+    public synchronized Slice since(long taken) {
+        long first = Math.max(taken, appended - lines.length);
+        List<String> slice = new ArrayList<>((int) (appended - first));
+        for (long i = first; i < appended; i++) {
+            slice.add(lines[(int) (i % lines.length)]);
+        }
+        return new Slice(appended, slice, first > taken);
+    }
+}
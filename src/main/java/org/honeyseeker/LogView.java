@@ -0,0 +1,69 @@
+package org.honeyseeker;
+
+import javax.swing.*;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Element;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Read only view of a {@link LogModel}. New lines are appended to the document and the oldest ones removed, the
+ * rest is never rendered again. Refreshes are coalesced: however many lines come in, the event queue gets at most
+ * one refresh per {@link #REFRESH_MILLIS}.
+ */
+public class LogView extends JTextArea {
+    private static final int REFRESH_MILLIS = 100;
+
+    private final LogModel model;
+    private final AtomicBoolean isRefreshScheduled = new AtomicBoolean(false);
+    private final Timer refreshTimer;
+    private long shown = 0;
+
+    public LogView(LogModel model) {
+        this.model = model;
+        setEditable(false);
+        setFont(UIManager.getFont("Label.font"));
+        setBackground(UIManager.getColor("Label.background"));
+        refreshTimer = new Timer(REFRESH_MILLIS, event -> refresh());
+        refreshTimer.setRepeats(false);
+        refresh();
+    }
+
+    /**
+     * Asks for the new lines of the model to be shown soon, cheap enough to call on every append from any thread.
+     */
+    public void requestRefresh() {
+        if (isRefreshScheduled.compareAndSet(false, true)) {
+            SwingUtilities.invokeLater(refreshTimer::start);
+        }
+    }
+
+    private void refresh() {
+        // lines appended from now on need another refresh
+        isRefreshScheduled.set(false);
+        LogModel.Slice slice = model.since(shown);
+        shown = slice.appended();
+        if (slice.lines().isEmpty()) {
+            return;
+        }
+        if (slice.isGap()) {
+            setText("");
+        }
+        String text = String.join("\n", slice.lines());
+        append(getDocument().getLength() == 0 ? text : "\n" + text);
+        removeOldestLines();
+        setCaretPosition(getDocument().getLength());
+    }
+
+    private void removeOldestLines() {
+        Element root = getDocument().getDefaultRootElement();
+        int excess = root.getElementCount() - model.getCapacity();
+        if (excess <= 0) {
+            return;
+        }
+        try {
+            getDocument().remove(0, root.getElement(excess - 1).getEndOffset());
+        } catch (BadLocationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -7,4 +7,7 @@ public interface Logger {
     void logInfo(String line);
     void logWarn(List<String> lines);
     void logWarn(String line);
+
+    default void logProgress(SearchProgress progress) {
+    }
 }
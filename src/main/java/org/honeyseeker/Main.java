@@ -1,40 +1,35 @@
 package org.honeyseeker;
 
-import org.w3c.dom.Document;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
-
 import javax.swing.*;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-import javax.xml.transform.stream.StreamSource;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 @SuppressWarnings("CallToPrintStackTrace")
 public class Main extends JFrame implements KeyListener, Logger {
     private static final String STOP_BUTTON_TEXT = "<html><p align=\"center\"> STOP \uD83D\uDDD9 </p> </html>";
     private static final String START_BUTTON_TEXT = "<html><p align=\"center\"> NEXT \uD83D\uDD0E︎ </p> </html>";
+    private static final int PROGRESS_BAR_MAX = 1000;
+    private static final int LOG_LINES = 100;
     private final JButton nextButton = new JButton(START_BUTTON_TEXT);
     private final JButton previousButton = new JButton("<html><p align=\"center\"> &nbsp; \uD83D\uDD19 </p> </html>");
     private final JButton highlightButton = new JButton("<html><p align=\"center\"> &nbsp; \uD83D\uDC41 </p> </html>");
-    private ArrayList<String> log = new ArrayList<>(
-            Arrays.asList("-", "-", "-", "-", "-", "-", "PROGRAM STARTED")
-    );
-    private final JLabel searchLog = new JLabel(getLogText());
+    private final LogModel log = new LogModel(LOG_LINES);
+    private final LogView searchLog = new LogView(log);
+    private final JProgressBar progressBar = new JProgressBar(0, PROGRESS_BAR_MAX);
     private final JScrollPane logScrollPane = new JScrollPane(
             searchLog, JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED, JScrollPane.HORIZONTAL_SCROLLBAR_AS_NEEDED
     );
@@ -43,18 +38,27 @@ public class Main extends JFrame implements KeyListener, Logger {
     private final JTextField fileField = new JTextField();
     private final JTextField entryField = new JTextField();
     private final JTextField searchQueryField = new JTextField();
-    private final JLabel previewLabel = new JLabel();
+    private final EncounterList previewList = new EncounterList();
     private final JScrollPane previewScrollPane = new JScrollPane(
-            previewLabel, JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED, JScrollPane.HORIZONTAL_SCROLLBAR_AS_NEEDED
+            previewList, JScrollPane.VERTICAL_SCROLLBAR_AS_NEEDED, JScrollPane.HORIZONTAL_SCROLLBAR_AS_NEEDED
     );
     private final Config config = new Config();
     private final ArrayList<JComponent> allUiControls = new ArrayList<>(Arrays.asList(
             previousButton, highlightButton, searchLog, folderField, fileField, entryField, searchQueryField,
-            previewLabel
+            previewList
     ));
     private final Searcher searcher = new Searcher(this);
+    private final ResultNavigator navigator = new ResultNavigator(searcher, this);
+    private final ExecutorService renderExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "book renderer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private SearchResult preRenderedResult;
+    private Future<File> preRenderedHtml;
+    private File preRenderedFile; // used by the render thread only
     private boolean highlightEnabled = true;
-    private boolean isWarningHappened = false;
+    private volatile boolean isWarningHappened = false;
 
     private Main(){
         super("HoneySeeker");
@@ -66,6 +70,7 @@ public class Main extends JFrame implements KeyListener, Logger {
 
         addComponentsToForm();
         addListeners();
+        writeToConsole(List.of("PROGRAM STARTED"));
         loadConfig();
 
         setSize(640, 480);
@@ -75,6 +80,7 @@ public class Main extends JFrame implements KeyListener, Logger {
         addWindowListener( new WindowAdapter() {
             @Override
             public void windowClosing(WindowEvent we) {
+                navigator.close();
                 saveConfig();
             }
         } );
@@ -82,12 +88,13 @@ public class Main extends JFrame implements KeyListener, Logger {
         nextButton.addActionListener(this::processNextButton);
         previousButton.addActionListener(this::processBackButton);
         highlightButton.addActionListener(this::toggleHighlight);
-        previewLabel.addMouseListener(new MouseAdapter() {
+        previewList.addMouseListener(new MouseAdapter() {
             @Override
             public void mouseClicked(MouseEvent e) {
                 openLocally();
             }
         });
+        previewScrollPane.getViewport().addChangeListener(e -> previewList.loadVisiblePages());
         searchLog.addMouseListener(new MouseAdapter() {
             @Override
             public void mouseClicked(MouseEvent e) {
@@ -101,50 +108,74 @@ public class Main extends JFrame implements KeyListener, Logger {
 
     private void openLocally() {
         if (Desktop.isDesktopSupported() && Desktop.getDesktop().isSupported(Desktop.Action.BROWSE)) {
-            try {
-                SearchResult lastResult = searcher.getLastResult();
-                if (lastResult.getEncounters().isEmpty()) {
-                    return;
-                }
-                String bookName = lastResult.getCurrentEntry();
-                String bookFullXml = lastResult.getBookFullText();
-
-                // Get stylesheet from resources (works both in IDE and JAR)
-                InputStream stylesheetStream = getClass().getResourceAsStream("/fb22htmls.xsl");
-                if (stylesheetStream == null) {
-                    throw new IOException("Stylesheet not found in resources");
-                }
-
-                try (StringReader stringReader = new StringReader(bookFullXml);
-                     BufferedReader reader = new BufferedReader(stringReader)) {
-                    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-                    DocumentBuilder builder = factory.newDocumentBuilder();
-                    Document document = builder.parse(new InputSource(reader));
-
-                    StreamSource styleSource = new StreamSource(stylesheetStream);
-                    TransformerFactory transformerFactory = TransformerFactory.newInstance();
-                    Transformer transformer = transformerFactory.newTransformer(styleSource);
-
+            SearchResult lastResult = navigator.getCurrent();
+            if (lastResult.getEncounters().isEmpty()) {
+                return;
+            }
+            Future<File> preRendered = lastResult == preRenderedResult ? preRenderedHtml : null;
+            // rendering a big book takes seconds, the UI stays responsive meanwhile
+            renderExecutor.submit(() -> {
+                try {
                     // Create HTML file in Downloads folder
                     String downloadsPath = System.getProperty("user.home") +
                             File.separator + "Downloads" + File.separator;
-                    String safeBookName = bookName.replaceAll("[^a-zA-Z0-9.-]", "_");
+                    String safeBookName = lastResult.getCurrentEntry().replaceAll("[^a-zA-Z0-9.-]", "_");
                     File htmlFile = new File(downloadsPath + safeBookName + ".html");
 
-                    // Transform XML to HTML and save to file
-                    try (FileOutputStream output = new FileOutputStream(htmlFile)) {
-                        StreamResult result = new StreamResult(output);
-                        transformer.transform(new DOMSource(document), result);
+                    if (!copyPreRendered(preRendered, htmlFile)) {
+                        renderToFile(lastResult, htmlFile);
                     }
 
                     // Open in browser
                     Desktop.getDesktop().browse(htmlFile.toURI());
+                } catch (IOException | TransformerException | SearcherException e) {
+                    logWarn("error opening book: " + e);
+                    e.printStackTrace();
                 }
+            });
+        }
+    }
 
-            } catch (IOException | ParserConfigurationException | SAXException | TransformerException e) {
-                logWarn("error opening book: " + e);
-                e.printStackTrace();
+    /**
+     * Renders the found book in the background, so opening it right after is instant.
+     */
+    private void preRender(SearchResult result) {
+        if (preRenderedHtml != null) {
+            preRenderedHtml.cancel(false);
+        }
+        preRenderedResult = result;
+        // all renders run on the same thread, so one file is enough
+        preRenderedHtml = renderExecutor.submit(() -> {
+            if (preRenderedFile == null) {
+                preRenderedFile = File.createTempFile("honey_seeker", ".html");
+                preRenderedFile.deleteOnExit();
             }
+            renderToFile(result, preRenderedFile);
+            return preRenderedFile;
+        });
+    }
+
+    private boolean copyPreRendered(Future<File> preRendered, File htmlFile) throws IOException {
+        if (preRendered == null) {
+            return false;
+        }
+        try {
+            Files.copy(preRendered.get().toPath(), htmlFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            return true;
+        } catch (ExecutionException | CancellationException e) {
+            return false; // render again, an error will be reported then
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void renderToFile(SearchResult result, File htmlFile)
+            throws IOException, TransformerException, SearcherException {
+        // Transform XML to HTML and save to file
+        try (Reader book = searcher.openBook(result);
+             FileOutputStream output = new FileOutputStream(htmlFile)) {
+            BookRenderer.renderToHtml(book, output);
         }
     }
 
@@ -163,12 +194,12 @@ public class Main extends JFrame implements KeyListener, Logger {
     private void toggleHighlight(ActionEvent actionEvent) {
         highlightEnabled = !highlightEnabled;
         searchQueryField.setVisible(highlightEnabled);
-        setPreviewText(searcher.getLastResult());
+        setPreviewText(navigator.getCurrent());
     }
 
     private void processSearch(boolean isBackwards) {
         if (nextButton.getText().contains("STOP")) {
-            searcher.shouldStop = true;
+            navigator.stop();
             return;
         }
         for (JComponent component: allUiControls) {
@@ -176,9 +207,11 @@ public class Main extends JFrame implements KeyListener, Logger {
             nextButton.setText(STOP_BUTTON_TEXT);
         }
         updateConfigFromFields();
+        progressBar.setValue(0);
+        progressBar.setString("");
         new Thread(() -> {
             try {
-                SearchResult result = searcher.doSearch(config, isBackwards);
+                SearchResult result = isBackwards ? navigator.previous(config) : navigator.next(config);
                 if (!result.getEncounters().isEmpty()) {
                     config.setCurrentFile(result.getCurrentFile());
                     config.setCurrentEntry(result.getCurrentEntry());
@@ -195,7 +228,17 @@ public class Main extends JFrame implements KeyListener, Logger {
             }
             SwingUtilities.invokeLater(() -> {
                 updateFieldsFromConfig();
-                setPreviewText(searcher.getLastResult());
+                SearchResult lastResult = navigator.getCurrent();
+                setPreviewText(lastResult);
+                int uncollected = lastResult.getMatchCount() - lastResult.getMatches().size();
+                if (uncollected > 0) {
+                    logInfo("showing the first " + lastResult.getMatches().size() + " of " +
+                            lastResult.getMatchCount() + " matches, max_matches_per_book limits them");
+                }
+                if (config.isPreRender() && !lastResult.getEncounters().isEmpty() &&
+                        lastResult != preRenderedResult) {
+                    preRender(lastResult);
+                }
                 for (JComponent component: allUiControls) {
                     component.setEnabled(true);
                     nextButton.setText(START_BUTTON_TEXT);
@@ -213,29 +256,7 @@ public class Main extends JFrame implements KeyListener, Logger {
     }
 
     private void setPreviewText(SearchResult result) {
-        String body = String.join(
-                "<br> <b> =============== </b> <br>",
-                result.getEncounters().stream()
-                        .map(this::highlight)
-                        .toList()
-        );
-        String text = "<html> <body style='width: " + getWidth()/10*7 +"px'> " + body + "</body> </html>";
-        previewLabel.setText(text);
-        previewScrollPane.updateUI();
-    }
-
-    private String highlight(SearchResult.SearchEncounter encounter) {
-        if (!highlightEnabled) {
-            return encounter.getContext();
-        }
-
-        String before = encounter.getContext().substring(0, encounter.getTargetPosition());
-        String selected = encounter.getContext().substring(
-                encounter.getTargetPosition(), encounter.getTargetPosition() + encounter.getTargetLen()
-        );
-        String after = encounter.getContext().substring(encounter.getTargetPosition() + encounter.getTargetLen());
-
-        return before + "<b>" + selected + "</b>" + after;
+        previewList.show(result.getEncounters(), highlightEnabled, getWidth()/10*7);
     }
 
     private void saveConfig() {
@@ -287,11 +308,11 @@ public class Main extends JFrame implements KeyListener, Logger {
         c.gridwidth = 3;
 
         pane.add(previewScrollPane, c);
-        previewLabel.setText("<html> <body style='width: %1spx'> click \"find\" to start search <br>" +
-                        String.join("<br>", Collections.nCopies(20,"")) +
-                        "</body> </html>"
-        );
-        previewLabel.setFont(new Font(previewLabel.getFont().getName(), Font.PLAIN, 24));
+        SearchResult.SearchEncounter hint = SearchResult.SearchEncounter.builder()
+                .context("click \"find\" to start search")
+                .build();
+        previewList.show(List.of(hint), false, 0);
+        previewList.setFont(new Font(previewList.getFont().getName(), Font.PLAIN, 24));
 
         {
             c.fill = GridBagConstraints.HORIZONTAL;
@@ -319,6 +340,16 @@ public class Main extends JFrame implements KeyListener, Logger {
             pane.add(highlightButton, c);
         }
 
+        c.fill = GridBagConstraints.HORIZONTAL;
+        c.weightx = 0.0;
+        c.weighty = 0.0;
+        c.gridx = 0;
+        c.gridy = gridy++;
+        c.gridwidth = 3;
+        progressBar.setStringPainted(true);
+        progressBar.setString("");
+        pane.add(progressBar, c);
+
         c.fill = GridBagConstraints.BOTH;
         c.weightx = 0.0;
         c.weighty = 0.2;
@@ -328,21 +359,12 @@ public class Main extends JFrame implements KeyListener, Logger {
         pane.add(logScrollPane, c);
     }
 
-    private String getLogText() {
-        log = new ArrayList<>(log.subList(Math.max(log.size() - 100, 0), log.size()));
-        return "<html>" + String.join("<br> ", log) + "<html>";
-    }
-
     private void writeToConsole(List<String> newLogEntries) {
         for (String logEntry: newLogEntries) {
             System.out.println(logEntry);
         }
-        this.log.addAll(newLogEntries);
-        SwingUtilities.invokeLater(() -> {
-            searchLog.setText(getLogText());
-            JScrollBar vertical = logScrollPane.getVerticalScrollBar();
-            vertical.setValue(vertical.getMaximum());
-        });
+        log.append(newLogEntries);
+        searchLog.requestRefresh();
     }
 
     @Override
@@ -370,6 +392,14 @@ public class Main extends JFrame implements KeyListener, Logger {
         logWarn(List.of(line));
     }
 
+    @Override
+    public void logProgress(SearchProgress progress) {
+        SwingUtilities.invokeLater(() -> {
+            progressBar.setValue((int) Math.round(progress.fractionDone() * PROGRESS_BAR_MAX));
+            progressBar.setString(progress.describe());
+        });
+    }
+
     public static void main(String[] args) {
         Main app = new Main();
         app.setVisible(true);
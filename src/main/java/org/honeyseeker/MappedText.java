@@ -0,0 +1,34 @@
+package org.honeyseeker;
+
+import java.util.Arrays;
+
+/**
+ * Plain text of a book with a map back to the XML it was extracted from. The map has an entry per text run,
+ * positions inside a run are exact unless the run contains character or entity references.
+ */
+public class MappedText {
+    private final String text;
+    private final int[] textStarts;
+    private final int[] xmlStarts;
+
+    MappedText(String text, int[] textStarts, int[] xmlStarts) {
+        this.text = text;
+        this.textStarts = textStarts;
+        this.xmlStarts = xmlStarts;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public int toXmlOffset(int textOffset) {
+        int run = Arrays.binarySearch(textStarts, textOffset);
+        if (run < 0) {
+            run = -run - 2;
+        }
+        if (run < 0) {
+            return 0;
+        }
+        return xmlStarts[run] + textOffset - textStarts[run];
+    }
+}
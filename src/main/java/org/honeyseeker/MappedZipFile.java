@@ -0,0 +1,373 @@
+package org.honeyseeker;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Read-only ZIP archive backed by memory mapped regions of the file. The central directory is read once on open,
+ * entries are inflated straight from the mapped bytes, so reading them from several threads needs no locking.
+ * Supports stored and deflated entries and ZIP64 archives.
+ */
+public class MappedZipFile implements Closeable {
+    private static final long REGION_SIZE = 1L << 30;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+    private static final int ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int MAX_COMMENT_SIZE = 0xFFFF;
+    private static final int ZIP64_EXTRA_FIELD = 0x0001;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+    private final String name;
+    private final FileChannel channel;
+    private final long size;
+    private final AtomicReferenceArray<MappedByteBuffer> regions;
+    private final List<ZipEntry> entries = new ArrayList<>();
+    private final Map<String, ZipEntry> entriesByName = new HashMap<>();
+    private final Map<String, Location> locations = new HashMap<>();
+    private final ConcurrentLinkedQueue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+    /** Streams closed after the archive end their inflaters instead of pooling them. */
+    private volatile boolean isClosed = false;
+
+    private record Location(long localHeaderOffset, int method) {}
+
+    public MappedZipFile(File file) throws IOException {
+        this.name = file.getPath();
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            this.size = channel.size();
+            this.regions = new AtomicReferenceArray<>((int) ((size + REGION_SIZE - 1) / REGION_SIZE));
+            readCentralDirectory();
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return entries in central directory order
+     */
+    public List<ZipEntry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    public ZipEntry getEntry(String entryName) {
+        return entriesByName.get(entryName);
+    }
+
+    /**
+     * Position of the entry in the archive file, reading entries in this order is sequential IO.
+     */
+    public long getPhysicalOffset(String entryName) {
+        Location location = locations.get(entryName);
+        return location == null ? Long.MAX_VALUE : location.localHeaderOffset();
+    }
+
+    public InputStream getInputStream(ZipEntry entry) throws IOException {
+        Location location = locations.get(entry.getName());
+        if (location == null) {
+            throw new ZipException("no entry " + entry.getName() + " in " + name);
+        }
+        long localHeaderOffset = location.localHeaderOffset();
+        ByteBuffer header = getRecord(localHeaderOffset, LOCAL_HEADER_SIZE);
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new ZipException("invalid local header of " + entry.getName() + " in " + name);
+        }
+        long dataOffset = localHeaderOffset + LOCAL_HEADER_SIZE + getShort(header, 26) + getShort(header, 28);
+        if (dataOffset + entry.getCompressedSize() > size) {
+            throw new ZipException("truncated entry " + entry.getName() + " in " + name);
+        }
+        List<ByteBuffer> slices = getSlices(dataOffset, entry.getCompressedSize());
+        return switch (location.method()) {
+            case ZipEntry.STORED -> new StoredInputStream(slices);
+            case ZipEntry.DEFLATED -> new DeflatedInputStream(slices);
+            default -> throw new ZipException(
+                    "unsupported compression method " + location.method() + " of " + entry.getName()
+            );
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        isClosed = true;
+        // mapped regions are released by GC, the channel is not needed for them
+        channel.close();
+        Inflater inflater;
+        while ((inflater = inflaters.poll()) != null) {
+            inflater.end();
+        }
+    }
+
+    private void readCentralDirectory() throws IOException {
+        long endOfCentralDirectory = findEndOfCentralDirectory();
+        ByteBuffer end = getRecord(endOfCentralDirectory, END_OF_CENTRAL_DIRECTORY_SIZE);
+        long entryCount = getShort(end, 10);
+        long centralDirectoryOffset = getUnsignedInt(end, 16);
+        ByteBuffer locator = endOfCentralDirectory >= 20 ? getRecord(endOfCentralDirectory - 20, 20) : null;
+        if (locator != null && locator.getInt(0) == ZIP64_LOCATOR_SIGNATURE) {
+            long zip64End = locator.getLong(8);
+            if (zip64End < 0 || zip64End + 56 > size) {
+                throw new ZipException("invalid ZIP64 end of central directory in " + name);
+            }
+            ByteBuffer zip64 = getRecord(zip64End, 56);
+            if (zip64.getInt(0) != ZIP64_END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+                throw new ZipException("invalid ZIP64 end of central directory in " + name);
+            }
+            entryCount = zip64.getLong(32);
+            centralDirectoryOffset = zip64.getLong(48);
+        }
+
+        long position = centralDirectoryOffset;
+        for (long i = 0; i < entryCount; i++) {
+            if (position < 0 || position + CENTRAL_HEADER_SIZE > size) {
+                throw new ZipException("invalid central directory in " + name);
+            }
+            ByteBuffer header = getRecord(position, CENTRAL_HEADER_SIZE);
+            if (header.getInt(0) != CENTRAL_HEADER_SIGNATURE) {
+                throw new ZipException("invalid central directory in " + name);
+            }
+            int method = getShort(header, 10);
+            long crc = getUnsignedInt(header, 16);
+            long compressedSize = getUnsignedInt(header, 20);
+            long uncompressedSize = getUnsignedInt(header, 24);
+            int nameLength = getShort(header, 28);
+            int extraLength = getShort(header, 30);
+            int commentLength = getShort(header, 32);
+            long localHeaderOffset = getUnsignedInt(header, 42);
+
+            byte[] nameBytes = new byte[nameLength];
+            getRecord(position + CENTRAL_HEADER_SIZE, nameLength).get(0, nameBytes);
+            String entryName = new String(nameBytes, StandardCharsets.UTF_8);
+
+            // ZIP64 extra field holds only the values that did not fit, in this order
+            ByteBuffer extra = getRecord(position + CENTRAL_HEADER_SIZE + nameLength, extraLength);
+            try {
+                int field = 0;
+                while (field + 4 <= extraLength) {
+                    int headerId = getShort(extra, field);
+                    int dataSize = getShort(extra, field + 2);
+                    if (headerId == ZIP64_EXTRA_FIELD) {
+                        int value = field + 4;
+                        if (uncompressedSize == ZIP64_MAGIC) {
+                            uncompressedSize = extra.getLong(value);
+                            value += 8;
+                        }
+                        if (compressedSize == ZIP64_MAGIC) {
+                            compressedSize = extra.getLong(value);
+                            value += 8;
+                        }
+                        if (localHeaderOffset == ZIP64_MAGIC) {
+                            localHeaderOffset = extra.getLong(value);
+                        }
+                    }
+                    field += 4 + dataSize;
+                }
+            } catch (IndexOutOfBoundsException e) {
+                throw new ZipException("invalid ZIP64 extra field of " + entryName + " in " + name);
+            }
+
+            ZipEntry entry = new ZipEntry(entryName);
+            if (method == ZipEntry.STORED || method == ZipEntry.DEFLATED) {
+                entry.setMethod(method);
+            }
+            entry.setCrc(crc);
+            entry.setCompressedSize(compressedSize);
+            entry.setSize(uncompressedSize);
+            if (entriesByName.putIfAbsent(entryName, entry) == null) {
+                entries.add(entry);
+                locations.put(entryName, new Location(localHeaderOffset, method));
+            }
+            position += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+    }
+
+    private long findEndOfCentralDirectory() throws IOException {
+        if (size < END_OF_CENTRAL_DIRECTORY_SIZE) {
+            throw new ZipException("zip END header not found in " + name);
+        }
+        long lowest = Math.max(0, size - END_OF_CENTRAL_DIRECTORY_SIZE - MAX_COMMENT_SIZE);
+        ByteBuffer tail = getRecord(lowest, (int) (size - lowest));
+        for (int position = tail.capacity() - END_OF_CENTRAL_DIRECTORY_SIZE; position >= 0; position--) {
+            if (tail.getInt(position) == END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+                return lowest + position;
+            }
+        }
+        throw new ZipException("zip END header not found in " + name);
+    }
+
+    private MappedByteBuffer getRegion(int index) throws IOException {
+        MappedByteBuffer region = regions.get(index);
+        if (region == null) {
+            // a region mapped twice by a race is harmless, only one of them is kept
+            long start = index * REGION_SIZE;
+            regions.compareAndSet(index, null,
+                    channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(REGION_SIZE, size - start)));
+            region = regions.get(index);
+        }
+        return region;
+    }
+
+    private List<ByteBuffer> getSlices(long position, long length) throws IOException {
+        List<ByteBuffer> slices = new ArrayList<>(2);
+        while (length > 0) {
+            int regionIndex = (int) (position / REGION_SIZE);
+            int regionOffset = (int) (position % REGION_SIZE);
+            MappedByteBuffer region = getRegion(regionIndex);
+            int sliceLength = (int) Math.min(length, region.capacity() - regionOffset);
+            slices.add(region.slice(regionOffset, sliceLength));
+            position += sliceLength;
+            length -= sliceLength;
+        }
+        return slices;
+    }
+
+    /**
+     * @return little endian view of a header, copied only if it straddles two regions
+     */
+    private ByteBuffer getRecord(long position, int length) throws IOException {
+        if (position < 0 || position + length > size) {
+            throw new ZipException("unexpected end of " + name);
+        }
+        List<ByteBuffer> slices = getSlices(position, length);
+        ByteBuffer record;
+        if (slices.size() == 1) {
+            record = slices.get(0);
+        } else {
+            record = ByteBuffer.allocate(length);
+            slices.forEach(record::put);
+        }
+        return record.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static int getShort(ByteBuffer record, int index) {
+        return Short.toUnsignedInt(record.getShort(index));
+    }
+
+    private static long getUnsignedInt(ByteBuffer record, int index) {
+        return Integer.toUnsignedLong(record.getInt(index));
+    }
+
+    private static class StoredInputStream extends InputStream {
+        private final List<ByteBuffer> slices;
+        private int sliceIndex = 0;
+
+        StoredInputStream(List<ByteBuffer> slices) {
+            this.slices = slices;
+        }
+
+        @Override
+        public int read() {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            while (sliceIndex < slices.size() && !slices.get(sliceIndex).hasRemaining()) {
+                sliceIndex++;
+            }
+            if (sliceIndex == slices.size()) {
+                return -1;
+            }
+            ByteBuffer slice = slices.get(sliceIndex);
+            int count = Math.min(length, slice.remaining());
+            slice.get(buffer, offset, count);
+            return count;
+        }
+    }
+
+    private class DeflatedInputStream extends InputStream {
+        private final List<ByteBuffer> slices;
+        private int sliceIndex = 0;
+        private boolean isDummyByteFed = false;
+        private Inflater inflater;
+
+        DeflatedInputStream(List<ByteBuffer> slices) {
+            this.slices = slices;
+            Inflater pooled = inflaters.poll();
+            this.inflater = pooled != null ? pooled : new Inflater(true);
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (inflater == null) {
+                throw new IOException("stream closed");
+            }
+            try {
+                while (true) {
+                    int count = inflater.inflate(buffer, offset, length);
+                    if (count > 0 || length == 0) {
+                        return count;
+                    }
+                    if (inflater.finished()) {
+                        return -1;
+                    }
+                    if (inflater.needsDictionary()) {
+                        throw new ZipException("invalid deflate stream, dictionary needed");
+                    }
+                    if (sliceIndex < slices.size()) {
+                        inflater.setInput(slices.get(sliceIndex++));
+                    } else if (!isDummyByteFed) {
+                        // raw deflate streams may need one dummy byte at the very end
+                        isDummyByteFed = true;
+                        inflater.setInput(new byte[1]);
+                    } else {
+                        throw new ZipException("unexpected end of deflated entry");
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new ZipException("invalid deflate stream: " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void close() {
+            if (inflater != null) {
+                if (isClosed) {
+                    inflater.end();
+                } else {
+                    inflater.reset();
+                    inflaters.offer(inflater);
+                    // the archive may have been closed and its pool emptied meanwhile
+                    if (isClosed && inflaters.remove(inflater)) {
+                        inflater.end();
+                    }
+                }
+                inflater = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package org.honeyseeker;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Predicate;
+
+/**
+ * Condition on the {@link BookMetadata} of a book, checked before its body is read, so a search restricted to
+ * some authors or years inflates only the first few KB of the other books. Written as {@code ;} separated
+ * {@code field=value} pairs, all of which have to hold:
+ * <pre>
+ * author=Петров; genre=sf; lang=ru; year=1900-1950; title=мёд
+ * </pre>
+ * {@code author}, {@code title} and {@code genre} match any part of the field ignoring case, {@code lang} has to
+ * be equal ignoring case and {@code year} is a year or an inclusive range of years.
+ */
+public class MetadataFilter {
+    private final String filter;
+    private final List<Predicate<BookMetadata>> conditions;
+
+    private MetadataFilter(String filter, List<Predicate<BookMetadata>> conditions) {
+        this.filter = filter;
+        this.conditions = conditions;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the filter is malformed
+     */
+    public static MetadataFilter parse(String filter) {
+        List<Predicate<BookMetadata>> conditions = new ArrayList<>();
+        for (String pair : filter.split(";")) {
+            if (pair.isBlank()) {
+                continue;
+            }
+            int separator = pair.indexOf('=');
+            if (separator == -1) {
+                throw new IllegalArgumentException("metadata filter needs field=value, found '" + pair.trim() + "'");
+            }
+            String field = pair.substring(0, separator).trim().toLowerCase(Locale.ROOT);
+            String value = pair.substring(separator + 1).trim();
+            if (value.isEmpty()) {
+                throw new IllegalArgumentException("no value of " + field + " in metadata filter");
+            }
+            String lowerCaseValue = value.toLowerCase(Locale.ROOT);
+            conditions.add(switch (field) {
+                case "author" -> metadata -> metadata.authors().stream()
+                        .anyMatch(author -> contains(author, lowerCaseValue));
+                case "title" -> metadata -> contains(metadata.title(), lowerCaseValue);
+                case "genre" -> metadata -> metadata.genres().stream()
+                        .anyMatch(genre -> contains(genre, lowerCaseValue));
+                case "lang" -> metadata -> metadata.lang().equalsIgnoreCase(value);
+                case "year" -> parseYears(value);
+                default -> throw new IllegalArgumentException("unknown metadata field " + field +
+                        ", expected author, title, genre, lang or year");
+            });
+        }
+        if (conditions.isEmpty()) {
+            throw new IllegalArgumentException("empty metadata filter");
+        }
+        return new MetadataFilter(filter, List.copyOf(conditions));
+    }
+
+    public boolean matches(BookMetadata metadata) {
+        for (Predicate<BookMetadata> condition : conditions) {
+            if (!condition.test(metadata)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if this filter was parsed from the same text
+     */
+    public boolean isParsedFrom(String filter) {
+        return this.filter.equals(filter);
+    }
+
+    private static Predicate<BookMetadata> parseYears(String value) {
+        int separator = value.indexOf('-', 1);
+        try {
+            int from = Integer.parseInt((separator == -1 ? value : value.substring(0, separator)).trim());
+            int to = separator == -1 ? from : Integer.parseInt(value.substring(separator + 1).trim());
+            return metadata -> {
+                int year = metadata.getYear();
+                return year >= from && year <= to;
+            };
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("year of metadata filter has to be like 1905 or 1900-1950");
+        }
+    }
+
+    private static boolean contains(String text, String lowerCaseValue) {
+        return text.toLowerCase(Locale.ROOT).contains(lowerCaseValue);
+    }
+}
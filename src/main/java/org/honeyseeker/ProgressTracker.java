@@ -0,0 +1,85 @@
+package org.honeyseeker;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+
+/**
+ * Follows the walk of a search entry by entry and publishes {@link SearchProgress} to the logger at most twice
+ * a second. Position and ETA are measured in compressed bytes of the archives, the only size known in advance.
+ * Not thread safe, it is fed by the thread consuming results in walk order.
+ */
+public class ProgressTracker {
+    private static final long REPORT_PERIOD_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+    private static final double RATE_SMOOTHING = 0.3;
+
+    private final Logger logger;
+    private final Map<File, Integer> archiveIndexes = new HashMap<>();
+    /** Compressed size of all archives walked before the archive with the same index. */
+    private final long[] sizeBefore;
+    private final long startTime = System.nanoTime();
+    private int currentArchive = 0;
+    private long currentArchiveDone = 0;
+    private long entriesDone = 0;
+    private long bytesProcessed = 0;
+    private long lastReportTime = startTime;
+    private long lastReportEntries = 0;
+    private double booksPerSecond = 0;
+
+    ProgressTracker(Logger logger, List<File> archives) {
+        this.logger = logger;
+        sizeBefore = new long[archives.size() + 1];
+        for (int i = 0; i < archives.size(); i++) {
+            archiveIndexes.put(archives.get(i), i);
+            sizeBefore[i + 1] = sizeBefore[i] + archives.get(i).length();
+        }
+    }
+
+    void onEntryDone(File archive, ZipEntry entry) {
+        int archiveIndex = archiveIndexes.getOrDefault(archive, currentArchive);
+        if (archiveIndex != currentArchive) {
+            currentArchive = archiveIndex;
+            currentArchiveDone = 0;
+        }
+        entriesDone++;
+        if (entry != null) {
+            bytesProcessed += Math.max(0, entry.getSize());
+            currentArchiveDone += Math.max(0, entry.getCompressedSize());
+        }
+        long now = System.nanoTime();
+        if (now - lastReportTime >= REPORT_PERIOD_NANOS) {
+            report(now, false, false);
+        }
+    }
+
+    /**
+     * @param isLibraryDone true if the walk reached the end of the library
+     */
+    void finish(boolean isLibraryDone) {
+        report(System.nanoTime(), isLibraryDone, true);
+    }
+
+    private void report(long now, boolean isLibraryDone, boolean isFinished) {
+        double seconds = Math.max(now - lastReportTime, 1) / (double) TimeUnit.SECONDS.toNanos(1);
+        double currentRate = (entriesDone - lastReportEntries) / seconds;
+        booksPerSecond = lastReportEntries == 0 ? currentRate :
+                RATE_SMOOTHING * currentRate + (1 - RATE_SMOOTHING) * booksPerSecond;
+        lastReportTime = now;
+        lastReportEntries = entriesDone;
+
+        int archivesTotal = sizeBefore.length - 1;
+        long totalSize = sizeBefore[archivesTotal];
+        long doneSize = isLibraryDone ? totalSize : Math.min(
+                sizeBefore[currentArchive] + currentArchiveDone, sizeBefore[currentArchive + 1]);
+        long elapsed = now - startTime;
+        long etaMillis = isLibraryDone ? 0 : doneSize == 0 ? -1 :
+                TimeUnit.NANOSECONDS.toMillis((long) ((double) elapsed / doneSize * (totalSize - doneSize)));
+        logger.logProgress(new SearchProgress(
+                isLibraryDone ? archivesTotal : currentArchive, archivesTotal, entriesDone, bytesProcessed,
+                booksPerSecond, totalSize == 0 ? 1 : (double) doneSize / totalSize, etaMillis, isFinished
+        ));
+    }
+}
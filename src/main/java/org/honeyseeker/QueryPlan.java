@@ -0,0 +1,306 @@
+package org.honeyseeker;
+
+import lombok.Getter;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Search query compiled once per search session. Plain phrases and plain alternatives like {@code one|two}
+ * are matched with Boyer-Moore-Horspool, everything else goes through {@link Pattern}.
+ * Both ways report the same matches: leftmost first, earlier alternative wins, matches do not overlap.
+ * <p>
+ * The plan also knows which literals every match has to contain, they feed the {@link BytePrefilter}.
+ * <p>
+ * A {@link BooleanQuery} plan reports the matches of the whole expression, a {@code NEAR} window is one match.
+ */
+public class QueryPlan {
+    private static final String REGEX_METACHARACTERS = "\\^$.|?*+()[]{}";
+    private static final int ALPHABET_MASK = 0xFF;
+    /** Escapes followed by arguments that would otherwise look like plain chars. */
+    private static final String ESCAPES_WITH_ARGUMENTS = "xu0cpPNk";
+
+    @Getter
+    private final String query;
+    private final Pattern pattern;
+    private final BooleanQuery expression;
+    /** Alternatives of a literal query, empty for a regular expression. */
+    @Getter
+    private final List<String> literals;
+    private final int[][] shifts;
+    /** At least one of them is present in every match, empty if nothing is guaranteed. */
+    @Getter
+    private final List<String> requiredLiterals;
+    @Getter
+    private final BytePrefilter prefilter;
+
+    private QueryPlan(String query, Pattern pattern, BooleanQuery expression, List<String> literals,
+                      List<String> requiredLiterals) {
+        this.query = query;
+        this.pattern = pattern;
+        this.expression = expression;
+        this.literals = literals;
+        this.shifts = literals.stream().map(QueryPlan::buildShiftTable).toArray(int[][]::new);
+        this.requiredLiterals = requiredLiterals;
+        this.prefilter = BytePrefilter.of(requiredLiterals);
+    }
+
+    public static QueryPlan compile(String query) {
+        List<String> alternatives = Arrays.asList(query.split("\\|", -1));
+        boolean isLiteral = alternatives.stream().allMatch(alternative -> !alternative.isEmpty() &&
+                alternative.chars().noneMatch(c -> REGEX_METACHARACTERS.indexOf(c) != -1));
+        if (isLiteral) {
+            return new QueryPlan(query, null, null, List.copyOf(alternatives), List.copyOf(alternatives));
+        }
+        Pattern pattern = Pattern.compile(query);
+        String requiredLiteral = findRequiredLiteral(query);
+        return new QueryPlan(query, pattern, null, List.of(),
+                requiredLiteral == null ? List.of() : List.of(requiredLiteral));
+    }
+
+    /**
+     * @param isBoolean true to read the query as a {@link BooleanQuery}, false for a regular expression
+     */
+    public static QueryPlan compile(String query, boolean isBoolean) {
+        if (!isBoolean) {
+            return compile(query);
+        }
+        BooleanQuery expression = BooleanQuery.parse(query);
+        return new QueryPlan(query, null, expression, List.of(), expression.getRequiredLiterals());
+    }
+
+    /**
+     * @return plan matching the text as is, regex metacharacters included
+     */
+    public static QueryPlan literal(String text) {
+        return new QueryPlan(text, null, null, List.of(text), List.of(text));
+    }
+
+    public boolean isLiteral() {
+        return pattern == null && expression == null;
+    }
+
+    public boolean isBoolean() {
+        return expression != null;
+    }
+
+    public QueryMatcher matcher(CharSequence text) {
+        if (pattern != null) {
+            return new RegexMatcher(pattern.matcher(text));
+        }
+        if (expression != null) {
+            return new SpansMatcher(expression.evaluate(text));
+        }
+        return new LiteralMatcher(text);
+    }
+
+    /**
+     * Finds the longest run of plain chars outside of groups, classes and optional parts of the expression.
+     * Anything unusual (alternation, inline flags, quoting, nested classes, escapes with arguments) gives up
+     * and returns null.
+     */
+    static String findRequiredLiteral(String regex) {
+        if (regex.indexOf('|') != -1 || regex.contains("(?") || regex.contains("\\Q")) {
+            return null;
+        }
+        String best = "";
+        StringBuilder run = new StringBuilder();
+        int depth = 0;
+        int i = 0;
+        while (i < regex.length()) {
+            char c = regex.charAt(i);
+            int next = i + 1;
+            Character literal = null;
+            if (c == '[') {
+                // a ] right after [ or [^ is a member of the class, not its end
+                int members = regex.startsWith("[^", i) ? i + 2 : i + 1;
+                int classEnd = regex.indexOf(']', members + 1);
+                if (classEnd == -1) {
+                    return null;
+                }
+                String charClass = regex.substring(i + 1, classEnd);
+                if (charClass.indexOf('[') != -1 || charClass.indexOf('\\') != -1) {
+                    return null;
+                }
+                next = classEnd + 1;
+            } else if (c == '\\') {
+                if (next >= regex.length()) {
+                    return null;
+                }
+                char escaped = regex.charAt(next);
+                next++;
+                if (Character.isDigit(escaped) || ESCAPES_WITH_ARGUMENTS.indexOf(escaped) != -1) {
+                    return null;
+                }
+                if (!Character.isLetterOrDigit(escaped)) {
+                    literal = escaped;
+                }
+            } else if (c == '{') {
+                // counted quantifier, its digits are not text
+                int quantifierEnd = regex.indexOf('}', next);
+                if (quantifierEnd == -1) {
+                    return null;
+                }
+                next = quantifierEnd + 1;
+            } else if (c == '(') {
+                depth++;
+            } else if (c == ')') {
+                depth--;
+            } else if (REGEX_METACHARACTERS.indexOf(c) == -1) {
+                literal = c;
+            }
+
+            char quantifier = next < regex.length() ? regex.charAt(next) : 0;
+            boolean isOptional = quantifier == '?' || quantifier == '*' || quantifier == '{';
+            if (literal != null && depth == 0 && !isOptional) {
+                run.append(literal.charValue());
+            }
+            if (literal == null || depth > 0 || isOptional || quantifier == '+') {
+                if (run.length() > best.length()) {
+                    best = run.toString();
+                }
+                run.setLength(0);
+            }
+            i = next;
+        }
+        if (run.length() > best.length()) {
+            best = run.toString();
+        }
+        return best.isEmpty() ? null : best;
+    }
+
+    private static int[] buildShiftTable(String literal) {
+        int[] shift = new int[ALPHABET_MASK + 1];
+        Arrays.fill(shift, literal.length());
+        // chars sharing the low byte get the smallest shift, later positions always have smaller ones
+        for (int i = 0; i < literal.length() - 1; i++) {
+            shift[literal.charAt(i) & ALPHABET_MASK] = literal.length() - 1 - i;
+        }
+        return shift;
+    }
+
+    public interface QueryMatcher {
+        boolean find();
+        int start();
+        int end();
+    }
+
+    private record RegexMatcher(Matcher matcher) implements QueryMatcher {
+        @Override
+        public boolean find() {
+            return matcher.find();
+        }
+
+        @Override
+        public int start() {
+            return matcher.start();
+        }
+
+        @Override
+        public int end() {
+            return matcher.end();
+        }
+    }
+
+    /**
+     * Walks through the matches of a boolean query, they are all found before the first one is reported.
+     */
+    private static class SpansMatcher implements QueryMatcher {
+        private final BooleanQuery.Spans spans;
+        private int index = -1;
+
+        SpansMatcher(BooleanQuery.Spans spans) {
+            this.spans = spans;
+        }
+
+        @Override
+        public boolean find() {
+            if (index + 1 >= spans.size()) {
+                index = spans.size();
+                return false;
+            }
+            index++;
+            return true;
+        }
+
+        @Override
+        public int start() {
+            return spans.start(index);
+        }
+
+        @Override
+        public int end() {
+            return spans.end(index);
+        }
+    }
+
+    private class LiteralMatcher implements QueryMatcher {
+        private final CharSequence text;
+        /** Next known occurrence of every alternative, -1 if there are no more. */
+        private final int[] nextOccurrences;
+        private int from = 0;
+        private int start = -1;
+        private int end = -1;
+
+        LiteralMatcher(CharSequence text) {
+            this.text = text;
+            this.nextOccurrences = new int[literals.size()];
+            Arrays.fill(nextOccurrences, Integer.MIN_VALUE);
+        }
+
+        @Override
+        public boolean find() {
+            int best = -1;
+            for (int i = 0; i < nextOccurrences.length; i++) {
+                if (nextOccurrences[i] != -1 && nextOccurrences[i] < from) {
+                    nextOccurrences[i] = indexOf(i, from);
+                }
+                if (nextOccurrences[i] != -1 && (best == -1 || nextOccurrences[i] < nextOccurrences[best])) {
+                    best = i;
+                }
+            }
+            if (best == -1) {
+                return false;
+            }
+            start = nextOccurrences[best];
+            end = start + literals.get(best).length();
+            from = end;
+            return true;
+        }
+
+        @Override
+        public int start() {
+            return start;
+        }
+
+        @Override
+        public int end() {
+            return end;
+        }
+
+        private int indexOf(int literalIndex, int fromIndex) {
+            String literal = literals.get(literalIndex);
+            int[] shift = shifts[literalIndex];
+            int last = literal.length() - 1;
+            char lastChar = literal.charAt(last);
+            int limit = text.length() - literal.length();
+            int position = fromIndex;
+            while (position <= limit) {
+                char c = text.charAt(position + last);
+                if (c == lastChar) {
+                    int j = last - 1;
+                    while (j >= 0 && text.charAt(position + j) == literal.charAt(j)) {
+                        j--;
+                    }
+                    if (j < 0) {
+                        return position;
+                    }
+                }
+                position += shift[c & ALPHABET_MASK];
+            }
+            return -1;
+        }
+    }
+}
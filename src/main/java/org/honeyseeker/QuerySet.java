@@ -0,0 +1,93 @@
+package org.honeyseeker;
+
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Queries searched in a single pass: a book is read, decoded and parsed once and then scanned by every query in
+ * turn, so each extra query costs a scan of the text, not a walk through the library.
+ * The set also knows the literals a book has to contain to match any of the queries, they feed the
+ * {@link BytePrefilter} and the trigram index.
+ */
+public class QuerySet {
+    /**
+     * @param name name to tag matches with, null for the only query of a plain search
+     */
+    public record NamedQuery(String name, QueryPlan plan) {}
+
+    @Getter
+    private final List<NamedQuery> queries;
+    /** At least one of them is present in every match of every query, empty if nothing is guaranteed. */
+    @Getter
+    private final List<String> requiredLiterals;
+    @Getter
+    private final BytePrefilter prefilter;
+
+    private QuerySet(List<NamedQuery> queries) {
+        this.queries = List.copyOf(queries);
+        List<String> literals = new ArrayList<>();
+        for (NamedQuery query : queries) {
+            if (query.plan().getRequiredLiterals().isEmpty()) {
+                // this query may match any book
+                literals.clear();
+                break;
+            }
+            literals.addAll(query.plan().getRequiredLiterals());
+        }
+        this.requiredLiterals = List.copyOf(literals);
+        this.prefilter = queries.size() == 1 ? queries.get(0).plan().getPrefilter() : BytePrefilter.of(literals);
+    }
+
+    /**
+     * @return set of the only query of a plain search, its matches are not tagged
+     */
+    public static QuerySet of(QueryPlan plan) {
+        return new QuerySet(List.of(new NamedQuery(null, plan)));
+    }
+
+    /**
+     * @param namedQueries queries by their names, in the order they are reported
+     * @param isBoolean true to read the queries as {@link BooleanQuery} expressions
+     */
+    public static QuerySet compile(Map<String, String> namedQueries, boolean isBoolean) {
+        List<NamedQuery> queries = new ArrayList<>();
+        namedQueries.forEach((name, query) ->
+                queries.add(new NamedQuery(name, QueryPlan.compile(query, isBoolean))));
+        return new QuerySet(queries);
+    }
+
+    /**
+     * @return true if this set was compiled from the same queries
+     */
+    public boolean isCompiledFrom(String query, Map<String, String> namedQueries, boolean isBoolean) {
+        if (queries.get(0).plan().isBoolean() != isBoolean) {
+            return false;
+        }
+        if (namedQueries.isEmpty()) {
+            return queries.size() == 1 && queries.get(0).name() == null &&
+                    queries.get(0).plan().getQuery().equals(query);
+        }
+        if (queries.size() != namedQueries.size()) {
+            return false;
+        }
+        for (NamedQuery namedQuery : queries) {
+            if (namedQuery.name() == null ||
+                    !namedQuery.plan().getQuery().equals(namedQueries.get(namedQuery.name()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean matchesAny(CharSequence text) {
+        for (NamedQuery query : queries) {
+            if (query.plan().matcher(text).find()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,341 @@
+package org.honeyseeker;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Moves the user from hit to hit. Visited hits are kept, so going back and forth over them is instant, and with
+ * {@link Config#getLookAhead()} above zero a background search runs ahead of the user and buffers the next hits.
+ * Anything kept is dropped as soon as the folder, the query or the position is changed by hand.
+ */
+public class ResultNavigator {
+    private static final int HISTORY_SIZE = 100;
+    private static final long STOP_POLL_MILLIS = 100;
+
+    private final Searcher searcher;
+    private final Logger logger;
+    /** Visited hits in walk order, {@link #cursor} points to the one shown. */
+    private final List<SearchResult> history = new ArrayList<>();
+    private int cursor = -1;
+    private String historyFolder;
+    private String historyQuery;
+    private boolean isHistoryBoolean;
+    private String historyMetadataFilter;
+    private LookAhead lookAhead;
+    private volatile SearchResult current = new SearchResult();
+    private volatile boolean isWaitingForLookAhead = false;
+    private volatile boolean shouldStop = false;
+
+    public ResultNavigator(Searcher searcher, Logger logger) {
+        this.searcher = searcher;
+        this.logger = logger;
+    }
+
+    /**
+     * @return hit shown to the user, empty after the end of the library was reached
+     */
+    public SearchResult getCurrent() {
+        return current;
+    }
+
+    public SearchResult next(Config config) throws SearcherException {
+        shouldStop = false;
+        syncHistory(config);
+        SearchResult result;
+        if (cursor + 1 < history.size()) {
+            result = history.get(++cursor);
+        } else {
+            result = findNext(config);
+            if (!result.getEncounters().isEmpty()) {
+                history.add(result);
+                cursor = history.size() - 1;
+                if (history.size() > HISTORY_SIZE) {
+                    history.remove(0);
+                    cursor--;
+                }
+            }
+        }
+        current = result;
+        if (!result.getEncounters().isEmpty()) {
+            startLookAhead(config);
+        }
+        return result;
+    }
+
+    public SearchResult previous(Config config) throws SearcherException {
+        shouldStop = false;
+        syncHistory(config);
+        SearchResult result;
+        if (cursor > 0) {
+            result = history.get(--cursor);
+        } else {
+            searcher.shouldStop = false;
+            result = searcher.doSearch(config, true, isAtHit());
+            if (!result.getEncounters().isEmpty()) {
+                history.add(0, result);
+                cursor = 0;
+                if (history.size() > HISTORY_SIZE) {
+                    history.remove(history.size() - 1);
+                }
+            }
+        }
+        current = result;
+        return result;
+    }
+
+    /**
+     * Interrupts the running {@link #next} or {@link #previous}.
+     */
+    public void stop() {
+        if (isWaitingForLookAhead) {
+            shouldStop = true;
+        } else {
+            searcher.shouldStop = true;
+        }
+    }
+
+    public void close() {
+        cancelLookAhead();
+    }
+
+    private SearchResult findNext(Config config) throws SearcherException {
+        if (lookAhead != null && lookAhead.isContinuing(config, getNewest())) {
+            isWaitingForLookAhead = true;
+            try {
+                return lookAhead.take(config);
+            } finally {
+                isWaitingForLookAhead = false;
+            }
+        }
+        cancelLookAhead();
+        searcher.shouldStop = false;
+        return searcher.doSearch(config, false, isAtHit());
+    }
+
+    /**
+     * Forgets everything if the config doesn't point to the hit shown anymore.
+     */
+    private void syncHistory(Config config) {
+        boolean isSynced = cursor != -1 &&
+                config.getFolder().equals(historyFolder) &&
+                config.getSearchQuery().equals(historyQuery) &&
+                config.isBooleanQuery() == isHistoryBoolean &&
+                config.getMetadataFilter().equals(historyMetadataFilter) &&
+                isAt(config, history.get(cursor));
+        if (!isSynced) {
+            history.clear();
+            cursor = -1;
+            historyFolder = config.getFolder();
+            historyQuery = config.getSearchQuery();
+            isHistoryBoolean = config.isBooleanQuery();
+            historyMetadataFilter = config.getMetadataFilter();
+            cancelLookAhead();
+        }
+    }
+
+    /**
+     * @return true if the config points to a book with hits, so searching starts after it
+     */
+    private boolean isAtHit() {
+        return cursor != -1 || !current.getEncounters().isEmpty();
+    }
+
+    private SearchResult getNewest() {
+        return history.isEmpty() ? null : history.get(history.size() - 1);
+    }
+
+    private void startLookAhead(Config config) {
+        if (config.getLookAhead() <= 0) {
+            cancelLookAhead();
+            return;
+        }
+        SearchResult newest = getNewest();
+        if (lookAhead == null || !lookAhead.isContinuing(config, newest)) {
+            cancelLookAhead();
+            lookAhead = new LookAhead(config, newest);
+        }
+    }
+
+    private void cancelLookAhead() {
+        if (lookAhead != null) {
+            lookAhead.cancel();
+            lookAhead = null;
+        }
+    }
+
+    private static boolean isAt(Config config, SearchResult result) {
+        return Objects.equals(config.getCurrentFile(), result.getCurrentFile()) &&
+                Objects.equals(config.getCurrentEntry(), result.getCurrentEntry());
+    }
+
+    /**
+     * Background search continuing after a hit, it blocks once the buffer of hits is full.
+     */
+    private class LookAhead {
+        private final String folder;
+        private final String query;
+        private final boolean isBooleanQuery;
+        private final String metadataFilter;
+        private final int bookTimeBudgetMs;
+        private final int size;
+        private final BlockingQueue<Ahead> hits;
+        private final WarningsOnlyLogger warnings = new WarningsOnlyLogger();
+        private final Searcher backgroundSearcher = new Searcher(warnings);
+        private final Thread thread;
+        /** Hit the buffered hits follow, the last one taken from the buffer. */
+        private SearchResult continuesAfter;
+        private volatile boolean isCancelled = false;
+        private volatile boolean isDone = false;
+        private volatile SearcherException failure;
+
+        LookAhead(Config config, SearchResult from) {
+            folder = config.getFolder();
+            query = config.getSearchQuery();
+            isBooleanQuery = config.isBooleanQuery();
+            metadataFilter = config.getMetadataFilter();
+            bookTimeBudgetMs = config.getBookTimeBudgetMs();
+            size = config.getLookAhead();
+            hits = new ArrayBlockingQueue<>(size);
+            continuesAfter = from;
+
+            Config searchConfig = new Config();
+            searchConfig.setFolder(folder);
+            searchConfig.setSearchQuery(query);
+            searchConfig.setBooleanQuery(isBooleanQuery);
+            searchConfig.setMetadataFilter(metadataFilter);
+            searchConfig.setNamedQueries(config.getNamedQueries());
+            searchConfig.setCurrentFile(from.getCurrentFile());
+            searchConfig.setCurrentEntry(from.getCurrentEntry());
+            searchConfig.setThreads(config.getThreads());
+            searchConfig.setUseIndex(config.isUseIndex());
+            searchConfig.setIndexFolder(config.getIndexFolder());
+            searchConfig.setMaxMatchesPerBook(config.getMaxMatchesPerBook());
+            searchConfig.setBookTimeBudgetMs(bookTimeBudgetMs);
+            // two caches must not share a folder, the foreground searcher owns it
+            searchConfig.setTextCacheFolder("");
+
+            thread = new Thread(() -> run(searchConfig), "look-ahead");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void run(Config searchConfig) {
+            try {
+                backgroundSearcher.searchAll(searchConfig, false, true, this::offer);
+            } catch (SearcherException e) {
+                if (!isCancelled) {
+                    failure = e;
+                }
+            } finally {
+                isDone = true;
+            }
+        }
+
+        private void offer(SearchResult result) throws InterruptedIOException {
+            Ahead ahead = new Ahead(result, warnings.drain());
+            try {
+                while (!hits.offer(ahead, STOP_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                    if (isCancelled) {
+                        throw new InterruptedIOException("look-ahead cancelled");
+                    }
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("look-ahead cancelled");
+            }
+        }
+
+        boolean isContinuing(Config config, SearchResult newest) {
+            return !isCancelled && continuesAfter == newest && size == config.getLookAhead() &&
+                    folder.equals(config.getFolder()) && query.equals(config.getSearchQuery()) &&
+                    isBooleanQuery == config.isBooleanQuery() && metadataFilter.equals(config.getMetadataFilter()) &&
+                    bookTimeBudgetMs == config.getBookTimeBudgetMs();
+        }
+
+        /**
+         * @return next hit, waiting for the background search if needed, or an empty result at the end
+         */
+        SearchResult take(Config config) throws SearcherException {
+            while (true) {
+                if (shouldStop) {
+                    shouldStop = false;
+                    throw new InterruptedByUserSearcherException("forced stop", config.getCurrentFile(),
+                            config.getCurrentEntry(), new InterruptedException("stop"));
+                }
+                boolean wasDone = isDone;
+                Ahead ahead;
+                try {
+                    ahead = hits.poll(STOP_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedByUserSearcherException(
+                            "interrupted", config.getCurrentFile(), config.getCurrentEntry(), e);
+                }
+                if (ahead != null) {
+                    logWarnings(ahead.warnings());
+                    continuesAfter = ahead.hit();
+                    return ahead.hit();
+                }
+                if (wasDone) {
+                    logWarnings(warnings.drain());
+                    if (failure != null) {
+                        throw failure;
+                    }
+                    logger.logInfo("end of search");
+                    return new SearchResult();
+                }
+            }
+        }
+
+        private void logWarnings(List<String> lines) {
+            if (!lines.isEmpty()) {
+                logger.logWarn(lines);
+            }
+        }
+
+        void cancel() {
+            isCancelled = true;
+            backgroundSearcher.shouldStop = true;
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Hit found in the background with the warnings about the books skipped on the way to it.
+     */
+    private record Ahead(SearchResult hit, List<String> warnings) {}
+
+    /**
+     * Keeps the background search from flooding the log and moving the progress bar. Warnings are held back until
+     * the user gets to the hit they precede, books the user never gets to are not warned about.
+     */
+    private static class WarningsOnlyLogger implements Logger {
+        private final List<String> warnings = new ArrayList<>();
+
+        synchronized List<String> drain() {
+            List<String> drained = List.copyOf(warnings);
+            warnings.clear();
+            return drained;
+        }
+
+        @Override
+        public void logInfo(List<String> lines) {}
+
+        @Override
+        public void logInfo(String line) {}
+
+        @Override
+        public synchronized void logWarn(List<String> lines) {
+            warnings.addAll(lines);
+        }
+
+        @Override
+        public void logWarn(String line) {
+            logWarn(List.of(line));
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package org.honeyseeker;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Receives every hit of a batch search as soon as it is found, in walk order.
+ */
+public interface ResultSink extends Closeable {
+    void onResult(SearchResult result) throws IOException;
+
+    @Override
+    default void close() throws IOException {
+    }
+}
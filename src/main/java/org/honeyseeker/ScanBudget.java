@@ -0,0 +1,86 @@
+package org.honeyseeker;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Time limit and stop flag of a single book, checked from inside the long running loops: the query scan through
+ * {@link #wrap} and the XML parsing through {@link #tick}. An exceeded limit throws {@link ExceededException} and
+ * a stop throws {@link CancellationException}, both unchecked, so they get out of {@link java.util.regex.Matcher}.
+ * Not thread safe, every book gets its own budget.
+ */
+public class ScanBudget {
+    public static final ScanBudget UNLIMITED = new ScanBudget(0, () -> false);
+    /** Ticks between two checks, reading the clock on every char would slow the scan down. */
+    private static final int CHECK_INTERVAL_MASK = 0xFFF;
+
+    private final long startTime = System.nanoTime();
+    private final long limitNanos;
+    private final BooleanSupplier isCancelled;
+    private int ticks = 0;
+
+    /**
+     * @param limitMillis time the book may take, 0 for no limit
+     */
+    public ScanBudget(long limitMillis, BooleanSupplier isCancelled) {
+        this.limitNanos = TimeUnit.MILLISECONDS.toNanos(limitMillis);
+        this.isCancelled = isCancelled;
+    }
+
+    public void check() {
+        if (isCancelled.getAsBoolean()) {
+            throw new CancellationException("forced stop");
+        }
+        long elapsed = System.nanoTime() - startTime;
+        if (limitNanos > 0 && elapsed > limitNanos) {
+            throw new ExceededException("time budget of " + TimeUnit.NANOSECONDS.toMillis(limitNanos) +
+                    " ms exceeded");
+        }
+    }
+
+    /**
+     * Cheap enough to call per char, the real check runs once in a few thousand ticks.
+     */
+    public void tick() {
+        if (this != UNLIMITED && (++ticks & CHECK_INTERVAL_MASK) == 0) {
+            check();
+        }
+    }
+
+    /**
+     * @return the text checking the budget as it is read
+     */
+    public CharSequence wrap(CharSequence text) {
+        return this == UNLIMITED ? text : new CheckedText(text, this);
+    }
+
+    public static class ExceededException extends RuntimeException {
+        ExceededException(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    private record CheckedText(CharSequence text, ScanBudget budget) implements CharSequence {
+        @Override
+        public int length() {
+            return text.length();
+        }
+
+        @Override
+        public char charAt(int index) {
+            budget.tick();
+            return text.charAt(index);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return text.subSequence(start, end);
+        }
+
+        @Override
+        public String toString() {
+            return text.toString();
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package org.honeyseeker;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of a single search, summed up from the {@link BookScanEvent}s of all books it went through.
+ */
+public class SearchMetrics {
+    private static final double BYTES_PER_MB = 1024 * 1024;
+
+    private final long startTime = System.nanoTime();
+    private volatile long endTime = 0;
+    private final LongAdder books = new LongAdder();
+    private final LongAdder bytesInflated = new LongAdder();
+    private final LongAdder inflateTime = new LongAdder();
+    private final LongAdder detectTime = new LongAdder();
+    private final LongAdder decodeTime = new LongAdder();
+    private final LongAdder parseTime = new LongAdder();
+    private final LongAdder searchTime = new LongAdder();
+    private final LongAdder textCacheHits = new LongAdder();
+    private final LongAdder metadataRejects = new LongAdder();
+    private final LongAdder prefilterRejects = new LongAdder();
+    private final LongAdder statisticalCharsets = new LongAdder();
+    private final LongAdder xmlFallbacks = new LongAdder();
+    private final LongAdder timeBudgetSkips = new LongAdder();
+
+    void add(BookScanEvent event) {
+        books.increment();
+        bytesInflated.add(event.bytesInflated);
+        inflateTime.add(event.inflateTime);
+        detectTime.add(event.detectTime);
+        decodeTime.add(event.decodeTime);
+        parseTime.add(event.parseTime);
+        searchTime.add(event.searchTime);
+        if (event.isTextCacheHit) {
+            textCacheHits.increment();
+        }
+        if (event.isMetadataRejected) {
+            metadataRejects.increment();
+        }
+        if (event.isPrefilterRejected) {
+            prefilterRejects.increment();
+        }
+        if (event.isCharsetStatistical) {
+            statisticalCharsets.increment();
+        }
+        if (event.isXmlFallbackUsed) {
+            xmlFallbacks.increment();
+        }
+        if (event.isOverTimeBudget) {
+            timeBudgetSkips.increment();
+        }
+    }
+
+    void finish() {
+        endTime = System.nanoTime();
+    }
+
+    public long getBooks() {
+        return books.sum();
+    }
+
+    public long getBytesInflated() {
+        return bytesInflated.sum();
+    }
+
+    public long getTextCacheHits() {
+        return textCacheHits.sum();
+    }
+
+    public long getMetadataRejects() {
+        return metadataRejects.sum();
+    }
+
+    public long getPrefilterRejects() {
+        return prefilterRejects.sum();
+    }
+
+    public long getStatisticalCharsets() {
+        return statisticalCharsets.sum();
+    }
+
+    public long getXmlFallbacks() {
+        return xmlFallbacks.sum();
+    }
+
+    public long getTimeBudgetSkips() {
+        return timeBudgetSkips.sum();
+    }
+
+    /**
+     * @return wall time of the search so far, or of the whole search once it is finished
+     */
+    public long getElapsedNanos() {
+        return (endTime != 0 ? endTime : System.nanoTime()) - startTime;
+    }
+
+    public List<String> getSummary() {
+        double seconds = Math.max(getElapsedNanos(), 1) / (double) TimeUnit.SECONDS.toNanos(1);
+        double megabytes = getBytesInflated() / BYTES_PER_MB;
+        long[] stageTimes = {inflateTime.sum(), detectTime.sum(), decodeTime.sum(), parseTime.sum(), searchTime.sum()};
+        double totalStageTime = Math.max(1, stageTimes[0] + stageTimes[1] + stageTimes[2] + stageTimes[3] +
+                stageTimes[4]);
+        return List.of(
+                String.format("searched %d books, %.1f MB in %.1f s: %.0f books/s, %.1f MB/s",
+                        getBooks(), megabytes, seconds, getBooks() / seconds, megabytes / seconds),
+                String.format("time share: inflate %.0f%%, charset %.0f%%, decode %.0f%%, parse %.0f%%, " +
+                                "search %.0f%%; cache hits %d, metadata skips %d, prefilter skips %d, " +
+                                "charsets by statistics %d, xml fallbacks %d, over time budget %d",
+                        100 * stageTimes[0] / totalStageTime, 100 * stageTimes[1] / totalStageTime,
+                        100 * stageTimes[2] / totalStageTime, 100 * stageTimes[3] / totalStageTime,
+                        100 * stageTimes[4] / totalStageTime, getTextCacheHits(), getMetadataRejects(),
+                        getPrefilterRejects(),
+                        getStatisticalCharsets(), getXmlFallbacks(), getTimeBudgetSkips())
+        );
+    }
+}
@@ -0,0 +1,20 @@
+package org.honeyseeker;
+
+/**
+ * Snapshot of a running search, published by {@link Searcher} at a throttled rate.
+ *
+ * @param fractionDone share of the compressed size of the archives to search that is already behind
+ * @param etaMillis    estimated time until the end of the library, -1 while it is unknown
+ * @param isFinished   true for the last snapshot of a search
+ */
+public record SearchProgress(int archivesDone, int archivesTotal, long entriesDone, long bytesProcessed,
+                             double booksPerSecond, double fractionDone, long etaMillis, boolean isFinished) {
+    private static final double BYTES_PER_MB = 1024 * 1024;
+
+    public String describe() {
+        String eta = etaMillis < 0 ? "?" : String.format("%d:%02d:%02d",
+                etaMillis / 3_600_000, etaMillis / 60_000 % 60, etaMillis / 1000 % 60);
+        return String.format("archives %d/%d, books %d, %.1f MB, %.0f books/s, ETA %s",
+                archivesDone, archivesTotal, entriesDone, bytesProcessed / BYTES_PER_MB, booksPerSecond, eta);
+    }
+}
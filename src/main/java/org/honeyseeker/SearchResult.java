@@ -3,17 +3,40 @@ package org.honeyseeker;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
 import lombok.NoArgsConstructor;
+import lombok.ToString;
 
 import java.util.ArrayList;
 import java.util.List;
 
+/**
+ * Hit in a single book. It keeps only where the book is and short snippets around the matches, the book itself is
+ * read again when needed, see {@link Searcher#openBook}.
+ */
 @Data
 public class SearchResult {
     private String currentFile;
     private String currentEntry;
+    private String archivePath;
+    /** CRC of the entry when it was searched, to notice a book replaced since then. */
+    private long entryCrc;
     private List<SearchEncounter> encounters = new ArrayList<>();
-    private String bookFullText;
+    private List<String> genres = new ArrayList<>();
+    /** Names of the named queries that matched, in the order of the query set, empty for a plain search. */
+    private List<String> matchedQueries = new ArrayList<>();
+    /** Matches found in the book, more than {@link #getMatches} if only the first ones were collected. */
+    private int matchCount;
+    /** Charsets chosen in the archive of the book, for {@link Searcher#openBook} to decode it as it was searched. */
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private XmlCharsetDetector.ArchiveCache charsets;
+    /**
+     * @return encounters of the query itself, without the genre encounters listed first
+     */
+    public List<SearchEncounter> getMatches() {
+        return encounters.subList(Math.min(genres.size(), encounters.size()), encounters.size());
+    }
 
     @Data
     @NoArgsConstructor
@@ -23,5 +46,11 @@ public class SearchResult {
         private String context;
         private int targetPosition;
         private int targetLen;
+        /** Position of the match in the searched text, the book text unless the book could not be parsed. */
+        private int offset;
+        /** Position of the match in the book XML. */
+        private int xmlOffset;
+        /** Name of the named query that matched, null for a plain search. */
+        private String query;
     }
 }
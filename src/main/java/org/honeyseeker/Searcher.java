@@ -2,49 +2,151 @@ package org.honeyseeker;
 
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
-import net.greypanther.natsort.CaseInsensitiveSimpleNaturalComparator;
-import org.apache.commons.io.ByteOrderMark;
 import org.apache.commons.io.input.BOMInputStream;
-import org.w3c.dom.Document;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.xpath.*;
+
+import javax.xml.stream.XMLStreamException;
 import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
 @RequiredArgsConstructor
 public class Searcher {
-    private static final int CONTEXT_SIZE = 300;
+    static final int CONTEXT_SIZE = 300;
+    /** Longer matches are cut in snippets, a greedy regex may match most of a book. */
+    private static final int MAX_SNIPPET_MATCH_LENGTH = 1000;
+    private static final int TASKS_PER_THREAD = 4;
+    private static final long STOP_POLL_MILLIS = 100;
+    static final QueryPlan GENRE_QUERY = QueryPlan.compile("(?<=<genre>).*?(?=</genre>)");
+    private static final String DESCRIPTION_END = "</description>";
+    private static final byte[] DESCRIPTION_END_BYTES = DESCRIPTION_END.getBytes(StandardCharsets.US_ASCII);
     @Getter
     private SearchResult lastResult = new SearchResult();
     private final Logger logger;
     public volatile boolean shouldStop = false;
+    private QuerySet querySet;
+    /** Null if books aren't filtered by metadata. */
+    private MetadataFilter metadataFilter;
+    /** True if the filter is the whole search, the body of a book is never read then. */
+    private boolean isMetadataOnly = false;
+    private TextCache textCache;
+    private LibrarySnapshot library;
+    private long bookTimeBudgetMillis = 0;
+    private int maxMatchesPerBook = Integer.MAX_VALUE;
+    /** Counters of the running search, or of the last one when no search is running. */
+    @Getter
+    private volatile SearchMetrics lastMetrics = new SearchMetrics();
 
     public SearchResult doSearch(Config config, boolean isBackwards) throws SearcherException {
-        if (lastResult.getEncounters().isEmpty()) {
-            logger.logInfo("start search");
-            lastResult = processZipFiles(config, false, isBackwards);
-        } else {
-            logger.logInfo("continue search");
-            lastResult = processZipFiles(config, true, isBackwards);
+        return doSearch(config, isBackwards, !lastResult.getEncounters().isEmpty());
+    }
+
+    /**
+     * @param shouldSkipCurrent true to continue after the current entry of the config, false to start from it
+     */
+    public SearchResult doSearch(Config config, boolean isBackwards, boolean shouldSkipCurrent)
+            throws SearcherException {
+        startSession(config);
+        try {
+            logger.logInfo(shouldSkipCurrent ? "continue search" : "start search");
+            lastResult = processZipFiles(config, shouldSkipCurrent, isBackwards, null);
+        } finally {
+            finishSession();
         }
 
         return lastResult;
     }
 
-    private SearchResult processZipFiles(Config config, boolean shouldSkipCurrent, boolean isBackwards)
+    public int searchAll(Config config, boolean isBackwards, ResultSink sink) throws SearcherException {
+        return searchAll(config, isBackwards, false, sink);
+    }
+
+    /**
+     * Walks the whole library once from the current position and streams every hit to the sink.
+     * Nothing is kept in memory between hits, and the last result of {@link #doSearch} is left untouched.
+     *
+     * @return number of books with hits
+     */
+    public int searchAll(Config config, boolean isBackwards, boolean shouldSkipCurrent, ResultSink sink)
             throws SearcherException {
+        startSession(config);
+        int[] hitCount = {0};
+        try {
+            logger.logInfo("start batch search");
+            processZipFiles(config, shouldSkipCurrent, isBackwards, result -> {
+                hitCount[0]++;
+                sink.onResult(result);
+            });
+        } finally {
+            finishSession();
+        }
+        return hitCount[0];
+    }
+
+    private void startSession(Config config) {
+        String filter = config.getMetadataFilter();
+        if (filter.isBlank()) {
+            metadataFilter = null;
+        } else if (metadataFilter == null || !metadataFilter.isParsedFrom(filter)) {
+            metadataFilter = MetadataFilter.parse(filter);
+        }
+        isMetadataOnly = metadataFilter != null && config.getSearchQuery().isEmpty() &&
+                config.getNamedQueries().isEmpty();
+        // an empty query is no boolean expression, and matches nothing but the filter
+        boolean isBoolean = config.isBooleanQuery() && !isMetadataOnly;
+        if (querySet == null || !querySet.isCompiledFrom(config.getSearchQuery(), config.getNamedQueries(),
+                isBoolean)) {
+            querySet = config.getNamedQueries().isEmpty() ?
+                    QuerySet.of(QueryPlan.compile(config.getSearchQuery(), isBoolean)) :
+                    QuerySet.compile(config.getNamedQueries(), isBoolean);
+        }
+        updateTextCache(config);
+        bookTimeBudgetMillis = config.getBookTimeBudgetMs();
+        maxMatchesPerBook = config.getMaxMatchesPerBook() > 0 ? config.getMaxMatchesPerBook() : Integer.MAX_VALUE;
+        lastMetrics = new SearchMetrics();
+    }
+
+    private void finishSession() {
+        lastMetrics.finish();
+        logger.logInfo(lastMetrics.getSummary());
+        if (textCache != null) {
+            try {
+                textCache.flush();
+            } catch (IOException e) {
+                logger.logWarn("warning, failed to save text cache, details: " + e);
+            }
+        }
+    }
+
+    private void updateTextCache(Config config) {
+        File folder = config.getTextCacheFolder().isEmpty() ? null : new File(config.getTextCacheFolder());
+        if (textCache != null && !textCache.getFolder().equals(folder)) {
+            try {
+                textCache.close();
+            } catch (IOException e) {
+                logger.logWarn("warning, failed to save text cache, details: " + e);
+            }
+            textCache = null;
+        }
+        if (textCache == null && folder != null) {
+            try {
+                textCache = TextCache.open(folder, config.getTextCacheSizeMb() * 1024L * 1024L);
+            } catch (IOException e) {
+                logger.logWarn("warning, text cache disabled, details: " + e);
+            }
+        }
+    }
+
+    /**
+     * @param sink receives all hits, or null to stop at the first hit and return it
+     */
+    private SearchResult processZipFiles(Config config, boolean shouldSkipCurrent, boolean isBackwards,
+                                         ResultSink sink) throws SearcherException {
         File folder = new File(config.getFolder());
 
         if (!folder.exists() || !folder.isDirectory()) {
@@ -52,178 +154,671 @@ public class Searcher {
             return new SearchResult();
         }
 
-        File[] zipFiles = folder.listFiles((dir, name) -> name.toLowerCase().endsWith(".zip"));
-        if (zipFiles == null || zipFiles.length == 0) {
+        library = LibrarySnapshot.update(library, folder);
+        List<File> zipFiles = library.getArchives(isBackwards);
+        if (zipFiles.isEmpty()) {
             return new SearchResult();
         }
 
-        Comparator<File> comparator = Comparator.comparing(
-                File::getName,
-                CaseInsensitiveSimpleNaturalComparator.getInstance()
-        );
-        if (isBackwards) {
-            comparator = comparator.reversed();
-        }
-        Arrays.sort(zipFiles, comparator);
-
-        boolean foundStartPoint = config.getCurrentFile().isEmpty();
-        for (File zipFile : zipFiles) {
-            if (!foundStartPoint && zipFile.getName().equals(config.getCurrentFile())) {
-                foundStartPoint = true;
-            }
-            if (!foundStartPoint) {
-                continue;
-            }
-            logger.logInfo("process archive: " + zipFile.getName());
-            SearchResult result = processSingleZipFile(zipFile, config, shouldSkipCurrent, isBackwards);
+        int startIndex = config.getCurrentFile().isEmpty() ? 0 :
+                library.indexOfArchive(config.getCurrentFile(), isBackwards);
+        if (startIndex != -1) {
+            List<File> archives = zipFiles.subList(startIndex, zipFiles.size());
+            SearchResult result = scanArchives(archives, config, shouldSkipCurrent, isBackwards, sink);
             if (!result.getEncounters().isEmpty()) {
                 return result;
             }
-            config.setCurrentEntry("");
         }
         logger.logInfo("end of search");
         return new SearchResult();
     }
 
-    private SearchResult processSingleZipFile(File zipFile, Config config, boolean shouldSkipCurrent,
-                                              boolean isBackwards)
-            throws SearcherException {
-        try (ZipFile zip = new ZipFile(zipFile)) {
-            List<String> fileNames = new ArrayList<>();
-            Enumeration<? extends ZipEntry> entries = zip.entries();
-            while (entries.hasMoreElements()) {
-                ZipEntry entry = entries.nextElement();
-                if (!entry.isDirectory()) {
-                    fileNames.add(entry.getName());
+    /**
+     * Searches entries of all archives in parallel, but consumes results strictly in walk order, so the first hit
+     * and the resume point are the same as for a sequential walk.
+     */
+    private SearchResult scanArchives(List<File> archives, Config config, boolean shouldSkipCurrent,
+                                      boolean isBackwards, ResultSink sink) throws SearcherException {
+        int threads = Math.max(1, config.getThreads());
+        AtomicBoolean cancelled = new AtomicBoolean(false);
+        Deque<PendingEntry> window = new ArrayDeque<>();
+        ProgressTracker progress = new ProgressTracker(logger, archives);
+        boolean isLibraryDone = false;
+        try (EntryFeed feed = new EntryFeed(archives.iterator(), config, shouldSkipCurrent, isBackwards);
+             ForkJoinPool pool = new ForkJoinPool(threads)) {
+            try {
+                fillWindow(window, threads * TASKS_PER_THREAD, feed, pool, querySet, cancelled);
+                while (!window.isEmpty()) {
+                    PendingEntry head = window.peekFirst();
+                    SearchResult result = awaitResult(head);
+                    window.removeFirst();
+                    progress.onEntryDone(head.archive(), head.zip().getEntry(head.entryName()));
+                    if (!result.getEncounters().isEmpty()) {
+                        if (sink == null) {
+                            return result;
+                        }
+                        writeToSink(sink, result);
+                    }
+                    if (window.isEmpty() || window.peekFirst().zip() != head.zip()) {
+                        feed.release(head.zip());
+                    }
+                    fillWindow(window, threads * TASKS_PER_THREAD, feed, pool, querySet, cancelled);
+                }
+                isLibraryDone = true;
+            } finally {
+                progress.finish(isLibraryDone);
+                cancelled.set(true);
+                for (PendingEntry pending : window) {
+                    pending.result().cancel(true);
                 }
             }
+        }
+        return new SearchResult();
+    }
 
-            Comparator<String> comparator = CaseInsensitiveSimpleNaturalComparator.getInstance();
-            if (isBackwards) {
-                comparator = comparator.reversed();
+    private void writeToSink(ResultSink sink, SearchResult result) throws SearcherException {
+        try {
+            sink.onResult(result);
+        } catch (IOException e) {
+            String errorMessage = "writing result for " + result.getCurrentEntry() + ", details: " + e;
+            throw new SearcherException(errorMessage, result.getCurrentFile(), result.getCurrentEntry(), e);
+        }
+    }
+
+    /**
+     * Tops the window up with the next entries of the walk. Each batch is submitted in the order entries lie in
+     * the archive file, so reads are sequential, while the window keeps the walk order for the results.
+     */
+    private void fillWindow(Deque<PendingEntry> window, int windowSize, EntryFeed feed, ForkJoinPool pool,
+                            QuerySet querySet, AtomicBoolean cancelled) {
+        List<EntryFeed.Item> batch = new ArrayList<>();
+        PendingEntry failedArchive = null;
+        while (window.size() + batch.size() < windowSize && !cancelled.get()) {
+            try {
+                EntryFeed.Item item = feed.next(pool);
+                if (item == null) {
+                    break;
+                }
+                batch.add(item);
+            } catch (SearcherException e) {
+                // report the broken archive only after all entries walked before it are checked
+                failedArchive = new PendingEntry(
+                        new File(e.getCurrentFile()), null, "", CompletableFuture.failedFuture(e)
+                );
+                break;
             }
-            fileNames.sort(comparator);
-            boolean foundStartPoint = config.getCurrentEntry().isEmpty();
-            for (String fileName : fileNames) {
-                ZipEntry entry = zip.getEntry(fileName);
-                if (entry != null && entry.getName().endsWith(".fb2")) {
-                    if (!foundStartPoint && entry.getName().equals(config.getCurrentEntry())) {
-                        foundStartPoint = true;
-                        if (shouldSkipCurrent) {
-                            continue;
-                        }
-                    }
-                    if (!foundStartPoint) {
-                        continue;
+        }
+
+        Map<EntryFeed.Item, Future<SearchResult>> futures = new HashMap<>();
+        batch.stream()
+                .sorted(Comparator.comparingLong(item -> item.zip().getPhysicalOffset(item.entryName())))
+                .forEach(item -> futures.put(item, pool.submit(() -> {
+                    if (shouldStop || cancelled.get()) {
+                        throw new InterruptedByUserSearcherException(
+                                "forced stop", null, item.entryName(), new InterruptedException("stop")
+                        );
                     }
-                    logger.logInfo("read file: " + entry.getName());
-                    SearchResult result = searchInZipEntryContent(zip, entry, config);
-                    if (!result.getEncounters().isEmpty()) {
-                        return result;
+                    ScanBudget budget = new ScanBudget(bookTimeBudgetMillis, () -> shouldStop || cancelled.get());
+                    return searchInZipEntryContent(item.zip(), item.zip().getEntry(item.entryName()),
+                            item.charsets(), querySet, budget);
+                })));
+        for (EntryFeed.Item item : batch) {
+            window.addLast(new PendingEntry(item.archive(), item.zip(), item.entryName(), futures.get(item)));
+        }
+        if (failedArchive != null) {
+            window.addLast(failedArchive);
+        }
+    }
+
+    private SearchResult awaitResult(PendingEntry pending) throws SearcherException {
+        String archiveName = pending.archive().getName();
+        while (true) {
+            if (shouldStop) {
+                shouldStop = false;
+                throw new InterruptedByUserSearcherException(
+                        "forced stop", archiveName, pending.entryName(), new InterruptedException("stop")
+                );
+            }
+            try {
+                return pending.result().get(STOP_POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                // poll shouldStop again
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedByUserSearcherException("interrupted", archiveName, pending.entryName(), e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof InterruptedByUserSearcherException) {
+                    shouldStop = false;
+                    throw new InterruptedByUserSearcherException(
+                            "forced stop", archiveName, pending.entryName(), cause
+                    );
+                }
+                if (cause instanceof SearcherException searcherException) {
+                    searcherException.setCurrentFile(archiveName);
+                    throw searcherException;
+                }
+                String errorMessage = "reading fb2 " + pending.entryName() + ", details: " + cause;
+                throw new SearcherException(errorMessage, archiveName, pending.entryName(), cause);
+            }
+        }
+    }
+
+    private record PendingEntry(File archive, MappedZipFile zip, String entryName, Future<SearchResult> result) {}
+
+    /**
+     * Lazily opens archives one after another and yields their fb2 entries in natural (or reversed) order,
+     * starting from the resume point inside the first archive.
+     */
+    private class EntryFeed implements Closeable {
+        private final Iterator<File> archives;
+        private final Config config;
+        private final boolean shouldSkipCurrent;
+        private final boolean isBackwards;
+        private final List<MappedZipFile> openedZips = new ArrayList<>();
+        private String startEntry;
+        private File archive;
+        private MappedZipFile zip;
+        private XmlCharsetDetector.ArchiveCache charsets;
+        private Iterator<String> entryNames = Collections.emptyIterator();
+
+        record Item(File archive, MappedZipFile zip, XmlCharsetDetector.ArchiveCache charsets, String entryName) {}
+
+        EntryFeed(Iterator<File> archives, Config config, boolean shouldSkipCurrent, boolean isBackwards) {
+            this.archives = archives;
+            this.config = config;
+            this.startEntry = config.getCurrentEntry();
+            this.shouldSkipCurrent = shouldSkipCurrent;
+            this.isBackwards = isBackwards;
+        }
+
+        Item next(ForkJoinPool pool) throws SearcherException {
+            while (!entryNames.hasNext()) {
+                if (!archives.hasNext()) {
+                    return null;
+                }
+                openArchive(archives.next(), pool);
+            }
+            return new Item(archive, zip, charsets, entryNames.next());
+        }
+
+        private void openArchive(File zipFile, ForkJoinPool pool) throws SearcherException {
+            logger.logInfo("process archive: " + zipFile.getName());
+            archive = zipFile;
+            entryNames = Collections.emptyIterator();
+            try {
+                zip = new MappedZipFile(zipFile);
+            } catch (IOException e) {
+                String errorMessage = "opening zip " + zipFile.getName() + ", details: " + e;
+                throw new SearcherException(errorMessage, zipFile.getName(), "", e);
+            }
+            openedZips.add(zip);
+            charsets = new XmlCharsetDetector.ArchiveCache();
+
+            List<String> fileNames = library.getEntries(zipFile, zip, isBackwards);
+            int startIndex = startEntry.isEmpty() ? 0 :
+                    LibrarySnapshot.indexOfEntry(fileNames, startEntry, isBackwards);
+            if (startIndex == -1) {
+                startIndex = fileNames.size();
+            } else if (!startEntry.isEmpty() && shouldSkipCurrent) {
+                startIndex++;
+            }
+            startEntry = "";
+            List<String> walk = fileNames.subList(startIndex, fileNames.size());
+            if (config.isUseIndex()) {
+                Set<String> candidates = getIndexCandidates(
+                        zipFile, zip, charsets, fileNames, config.getIndexFolder(), pool);
+                if (candidates != null) {
+                    walk = walk.stream().filter(candidates::contains).toList();
+                }
+            }
+            entryNames = walk.iterator();
+        }
+
+        void release(MappedZipFile consumedZip) {
+            if (consumedZip != null && consumedZip != zip && openedZips.remove(consumedZip)) {
+                closeQuietly(consumedZip);
+            }
+        }
+
+        @Override
+        public void close() {
+            for (MappedZipFile openedZip : openedZips) {
+                closeQuietly(openedZip);
+            }
+            openedZips.clear();
+        }
+
+        private void closeQuietly(MappedZipFile zipToClose) {
+            try {
+                zipToClose.close();
+            } catch (IOException e) {
+                logger.logWarn("warning, failed to close zip " + zipToClose.getName() + ", details: " + e);
+            }
+        }
+    }
+
+    /**
+     * @return candidate entries of the archive according to its trigram index, or null to check all entries
+     */
+    private Set<String> getIndexCandidates(File zipFile, MappedZipFile zip, XmlCharsetDetector.ArchiveCache charsets,
+                                           List<String> fileNames, String indexFolder, ForkJoinPool pool) {
+        if (querySet.getRequiredLiterals().isEmpty()) {
+            return null;
+        }
+        File indexFile = TrigramIndex.getIndexFile(zipFile, indexFolder);
+        try {
+            TrigramIndex index = TrigramIndex.open(zipFile, indexFile);
+            if (index == null) {
+                logger.logInfo("index archive: " + zipFile.getName());
+                TrigramIndex.Builder builder = new TrigramIndex.Builder(fileNames);
+                pool.submit(() -> fileNames.parallelStream()
+                        .map(fileName -> getBookTrigramBuckets(zip, charsets, fileName))
+                        .forEachOrdered(builder::add)
+                ).get();
+                builder.write(zipFile, indexFile);
+                index = TrigramIndex.open(zipFile, indexFile);
+            }
+            return index == null ? null : index.getCandidates(querySet.getRequiredLiterals());
+        } catch (IOException | ExecutionException e) {
+            if (!shouldStop) {
+                logger.logWarn("warning, failed to use index of " + zipFile.getName() + ", details: " + e);
+            }
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private BitSet getBookTrigramBuckets(MappedZipFile zip, XmlCharsetDetector.ArchiveCache charsets,
+                                         String fileName) {
+        if (shouldStop) {
+            throw new CancellationException("forced stop");
+        }
+        try {
+            String bookFullXml = readBookFullXml(
+                    zip, zip.getEntry(fileName), null, charsets, BytePrefilter.NONE, new BookScanEvent());
+            String bookTextOnly;
+            try {
+                bookTextOnly = extractBookText(bookFullXml);
+            } catch (XMLStreamException e) {
+                bookTextOnly = "";
+            }
+            return TrigramIndex.getBuckets(List.of(bookFullXml, bookTextOnly));
+        } catch (SearcherException e) {
+            return null; // will be checked on every search and report the error there
+        }
+    }
+
+    private SearchResult searchInZipEntryContent(MappedZipFile zip, ZipEntry entry,
+                                                 XmlCharsetDetector.ArchiveCache charsets, QuerySet querySet,
+                                                 ScanBudget budget) throws SearcherException {
+        String zipName = getArchiveName(zip);
+        SearchMetrics metrics = lastMetrics;
+        BookScanEvent event = new BookScanEvent();
+        event.begin();
+        event.archive = zipName;
+        event.entry = entry.getName();
+        BookStart bookStart = null;
+        try {
+            MetadataFilter filter = metadataFilter;
+            if (filter != null) {
+                bookStart = readBookDescription(zip, entry, charsets, event);
+                String descriptionXml = bookStart.descriptionXml();
+                BookMetadata metadata = parseMetadata(descriptionXml, entry, event);
+                if (metadata == null || !filter.matches(metadata)) {
+                    event.isMetadataRejected = true;
+                    return new SearchResult();
+                }
+                if (isMetadataOnly) {
+                    SearchResult result = toMetadataResult(descriptionXml, metadata, zip, entry);
+                    result.setCharsets(charsets);
+                    return result;
+                }
+            }
+
+            TextCache cache = textCache;
+            if (cache != null) {
+                try {
+                    String cachedText = cache.get(zipName, entry);
+                    // only books matching in text need the full read, to get genres and the XML to open
+                    if (cachedText != null) {
+                        event.isTextCacheHit = true;
+                        long searchStart = System.nanoTime();
+                        boolean isFound = querySet.matchesAny(budget.wrap(cachedText));
+                        event.searchTime += System.nanoTime() - searchStart;
+                        if (!isFound) {
+                            return new SearchResult();
+                        }
                     }
+                } catch (IOException e) {
+                    logger.logWarn("warning, failed to read text cache for " + entry.getName() + ", details: " + e);
                 }
             }
+
+            String bookFullXml = readBookFullXml(zip, entry, bookStart, charsets, querySet.getPrefilter(), event);
+            bookStart = null; // read to the end
+            if (bookFullXml == null) {
+                return new SearchResult();
+            }
+
+            MappedText bookText;
+            long parseStart = System.nanoTime();
+            try {
+                bookText = TextExtractor.extractMappedText(bookFullXml, budget);
+                event.parseTime = System.nanoTime() - parseStart;
+                putToTextCache(cache, zipName, entry, bookText.getText());
+            } catch (XMLStreamException e) {
+                event.parseTime = System.nanoTime() - parseStart;
+                event.isXmlFallbackUsed = true;
+                String warningMessage = "warning, failed to parse fb2 " + entry.getName() + ", details: " + e;
+                logger.logWarn(warningMessage);
+                bookText = null; // will continue to use full XML as fallback
+            }
+            long searchStart = System.nanoTime();
+            SearchResult result = searchInText(bookText, bookFullXml, querySet, zip, entry, budget);
+            event.searchTime += System.nanoTime() - searchStart;
+            result.setCharsets(charsets);
+            return result;
+        } catch (ScanBudget.ExceededException e) {
+            event.isOverTimeBudget = true;
+            logger.logWarn("warning, skipped fb2 " + entry.getName() + " of " + zipName + ", " + e.getMessage());
+            return new SearchResult();
+        } catch (CancellationException e) {
+            throw new InterruptedByUserSearcherException("forced stop", zipName, entry.getName(), e);
+        } finally {
+            if (bookStart != null) {
+                discardRest(bookStart.source());
+            }
+            metrics.add(event);
+            event.commit();
+        }
+    }
+
+    private void discardRest(EntrySource source) {
+        try {
+            source.discardRest();
         } catch (IOException e) {
-            String errorMessage = "opening zip " + zipFile.getName() + ", details: " + e;
-            throw new SearcherException(errorMessage, zipFile.getName(), "", e);
-        } catch (SearcherException e) {
-            e.setCurrentFile(zipFile.getName());
-            throw e;
+            logger.logWarn("warning, failed to close fb2 " + source.getName() + ", details: " + e);
         }
-        return new SearchResult();
     }
 
-    private SearchResult searchInZipEntryContent(ZipFile zip, ZipEntry entry, Config config) throws SearcherException {
-        String bookFullXml;
-        String bookTextOnly;
+    private void putToTextCache(TextCache cache, String zipName, ZipEntry entry, String bookTextOnly) {
+        if (cache == null) {
+            return;
+        }
+        try {
+            cache.put(zipName, entry, bookTextOnly);
+        } catch (IOException e) {
+            logger.logWarn("warning, failed to write text cache for " + entry.getName() + ", details: " + e);
+        }
+    }
 
-        if (shouldStop) {
-            shouldStop = false;
-            throw new InterruptedByUserSearcherException(
-                    "forced stop", null, entry.getName(), new InterruptedException("stop")
-            );
-        }
-
-        try (InputStream rawStream = zip.getInputStream(entry);
-             BOMInputStream bomInputStream = BOMInputStream.builder()
-                .setByteOrderMarks(
-                        ByteOrderMark.UTF_8, ByteOrderMark.UTF_16LE, ByteOrderMark.UTF_16BE, ByteOrderMark.UTF_32LE,
-                        ByteOrderMark.UTF_32BE
-                )
-                .setInputStream(rawStream).get();
-             InputStreamReader inputStreamReader = new InputStreamReader(
-                     bomInputStream, XmlCharsetDetector.getCharsetFromXml(zip, entry, logger)
-             );
-             BufferedReader reader = new BufferedReader(inputStreamReader)) {
-            bookFullXml = reader.lines().collect(Collectors.joining(" "));
+    /**
+     * Start of a book read up to the end of its description, the rest is inflated only if the book is searched.
+     *
+     * @param descriptionXml the start decoded the same way as the whole book
+     */
+    private record BookStart(EntrySource source, Charset charset, String descriptionXml) {}
+
+    private BookStart readBookDescription(MappedZipFile zip, ZipEntry entry, XmlCharsetDetector.ArchiveCache charsets,
+                                          BookScanEvent event) throws SearcherException {
+        try {
+            long stageStart = System.nanoTime();
+            EntrySource source = EntrySource.readUpTo(zip, entry, DESCRIPTION_END_BYTES);
+            event.inflateTime += System.nanoTime() - stageStart;
+            event.bytesInflated = source.getLength();
+
+            Charset charset = detectCharset(source, charsets, event);
+
+            stageStart = System.nanoTime();
+            String descriptionXml = source.decode(charset);
+            event.decodeTime += System.nanoTime() - stageStart;
+            return new BookStart(source, charset, descriptionXml);
+        } catch (IOException e) {
+            String errorMessage = "reading fb2 " + entry.getName() + ", details: " + e;
+            throw new SearcherException(errorMessage, null, entry.getName(), e);
+        }
+    }
+
+    /**
+     * @return metadata of the book or null if its description could not be parsed
+     */
+    private BookMetadata parseMetadata(String descriptionXml, ZipEntry entry, BookScanEvent event) {
+        long parseStart = System.nanoTime();
+        try (StringReader reader = new StringReader(descriptionXml)) {
+            return TextExtractor.extractMetadata(reader);
+        } catch (XMLStreamException e) {
+            logger.logWarn("warning, failed to parse description of fb2 " + entry.getName() + ", details: " + e);
+            return null;
+        } finally {
+            event.parseTime += System.nanoTime() - parseStart;
+        }
+    }
+
+    /**
+     * @param bookStart start of the book already read, its charset is kept, null to read the book from scratch
+     * @return decoded book or null if the prefilter proved it can't match
+     */
+    private String readBookFullXml(MappedZipFile zip, ZipEntry entry, BookStart bookStart,
+                                   XmlCharsetDetector.ArchiveCache charsets, BytePrefilter prefilter,
+                                   BookScanEvent event) throws SearcherException {
+        try {
+            long stageStart = System.nanoTime();
+            EntrySource source = bookStart != null ? bookStart.source().readRest() : EntrySource.read(zip, entry);
+            long stageEnd = System.nanoTime();
+            event.inflateTime += stageEnd - stageStart;
+            event.bytesInflated = source.getLength();
+
+            Charset charset = bookStart != null ? bookStart.charset() : detectCharset(source, charsets, event);
+
+            stageStart = System.nanoTime();
+            boolean mayMatch = prefilter.mayMatch(source, charset);
+            stageEnd = System.nanoTime();
+            event.searchTime += stageEnd - stageStart;
+            if (!mayMatch) {
+                event.isPrefilterRejected = true;
+                return null;
+            }
+
+            String bookFullXml = source.decode(charset);
+            event.decodeTime += System.nanoTime() - stageEnd;
+            return bookFullXml;
         } catch (IOException e) {
             String errorMessage = "reading fb2 " + entry.getName() + ", details: " + e;
             throw new SearcherException(errorMessage, null, entry.getName(), e);
         }
+    }
+
+    private static Charset detectCharset(EntrySource source, XmlCharsetDetector.ArchiveCache charsets,
+                                         BookScanEvent event) {
+        long detectStart = System.nanoTime();
+        XmlCharsetDetector.Detection detection = XmlCharsetDetector.detect(source, charsets);
+        event.charset = detection.charset().name();
+        event.charsetConfidence = detection.confidence();
+        event.isCharsetStatistical = detection.isStatistical();
+        event.detectTime += System.nanoTime() - detectStart;
+        return detection.charset();
+    }
 
-        try (StringReader stringReader = new StringReader(bookFullXml);
-             BufferedReader reader = new BufferedReader(stringReader)) {
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            DocumentBuilder builder = factory.newDocumentBuilder();
-            Document document = builder.parse(new InputSource(reader));
-            bookTextOnly = getBookRawText(document);
-        } catch (ParserConfigurationException | SAXException | XPathExpressionException | IOException e) {
-            String warningMessage = "warning, failed to parse fb2 " + entry.getName() + ", details: " + e;
-            logger.logWarn(warningMessage);
-            bookTextOnly = ""; // will continue to use full XML as fallback
+    /**
+     * Opens the book of a result again for streaming, results don't keep it to stay small. Closing the reader
+     * closes the archive.
+     */
+    public Reader openBook(SearchResult result) throws SearcherException {
+        MappedZipFile zip = null;
+        try {
+            zip = new MappedZipFile(new File(result.getArchivePath()));
+            ZipEntry entry = zip.getEntry(result.getCurrentEntry());
+            if (entry == null || entry.getCrc() != result.getEntryCrc()) {
+                String errorMessage = "book " + result.getCurrentEntry() + " changed since it was found";
+                throw new SearcherException(errorMessage, result.getCurrentFile(), result.getCurrentEntry(), null);
+            }
+            InputStream input = new BufferedInputStream(BOMInputStream.builder()
+                    .setInputStream(zip.getInputStream(entry))
+                    .setByteOrderMarks(EntrySource.BYTE_ORDER_MARKS)
+                    .get());
+            input.mark(XmlCharsetDetector.SAMPLE_SIZE);
+            byte[] sample = input.readNBytes(XmlCharsetDetector.SAMPLE_SIZE);
+            input.reset();
+            MappedZipFile openedZip = zip;
+            Charset charset = XmlCharsetDetector.detect(sample, result.getCharsets()).charset();
+            return new InputStreamReader(input, charset) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        openedZip.close();
+                    }
+                }
+            };
+        } catch (IOException e) {
+            String errorMessage = "reading fb2 " + result.getCurrentEntry() + ", details: " + e;
+            closeAfterFailure(zip, e);
+            throw new SearcherException(errorMessage, result.getCurrentFile(), result.getCurrentEntry(), e);
+        } catch (SearcherException e) {
+            closeAfterFailure(zip, e);
+            throw e;
         }
-        return searchInText(bookTextOnly, bookFullXml, config.getSearchQuery(), zip, entry);
     }
 
-    private SearchResult searchInText(String bookTextOnly, String bookFullXml, String searchQuery,
-                                      ZipFile zip, ZipEntry entry) {
-        List<SearchResult.SearchEncounter> rawResults = searchInText(bookTextOnly, searchQuery, CONTEXT_SIZE);
-        List<SearchResult.SearchEncounter> xmlResults = searchInText(bookFullXml, searchQuery, CONTEXT_SIZE);
-        List<SearchResult.SearchEncounter> results = rawResults.size() > xmlResults.size() ? rawResults: xmlResults;
+    private static void closeAfterFailure(MappedZipFile zip, Exception failure) {
+        if (zip == null) {
+            return;
+        }
+        try {
+            zip.close();
+        } catch (IOException e) {
+            failure.addSuppressed(e);
+        }
+    }
+
+    static String extractBookText(String bookFullXml) throws XMLStreamException {
+        try (StringReader reader = new StringReader(bookFullXml)) {
+            return TextExtractor.extractText(reader, bookFullXml.length());
+        }
+    }
+
+    /**
+     * Runs every query once, over the book text, or over the whole XML if the book could not be parsed.
+     * Matches of several queries are merged in book order, only the first {@link #maxMatchesPerBook} of them
+     * are kept, the rest are counted.
+     */
+    private SearchResult searchInText(MappedText bookText, String bookFullXml, QuerySet querySet,
+                                      MappedZipFile zip, ZipEntry entry, ScanBudget budget) {
+        String searchedText = bookText != null ? bookText.getText() : bookFullXml;
+        List<SearchResult.SearchEncounter> results = new ArrayList<>();
+        List<String> matchedQueries = new ArrayList<>();
+        int matchCount = 0;
+        for (QuerySet.NamedQuery query : querySet.getQueries()) {
+            Matches queryMatches = findMatches(searchedText, query.plan(), CONTEXT_SIZE, maxMatchesPerBook, budget);
+            if (queryMatches.count() == 0) {
+                continue;
+            }
+            if (query.name() != null) {
+                matchedQueries.add(query.name());
+                queryMatches.encounters().forEach(encounter -> encounter.setQuery(query.name()));
+            }
+            results.addAll(queryMatches.encounters());
+            matchCount += queryMatches.count();
+        }
 
         SearchResult result = new SearchResult();
         if (results.isEmpty()) {
             return result;
         }
+        if (querySet.getQueries().size() > 1) {
+            results.sort(Comparator.comparingInt(SearchResult.SearchEncounter::getOffset));
+            if (results.size() > maxMatchesPerBook) {
+                results = new ArrayList<>(results.subList(0, maxMatchesPerBook));
+            }
+        }
+        if (bookText != null) {
+            for (SearchResult.SearchEncounter encounter : results) {
+                encounter.setXmlOffset(bookText.toXmlOffset(encounter.getOffset()));
+            }
+        }
 
-        List<SearchResult.SearchEncounter> genres = searchInText(bookFullXml, "(?<=<genre>).*?(?=</genre>)", 0);
-        result.setEncounters(Stream.concat(genres.stream(), results.stream()).collect(Collectors.toList()));
-        result.setCurrentEntry(entry.getName());
-        result.setCurrentFile(zip.getName().substring(zip.getName().lastIndexOf(File.separator)+1));
-        result.setBookFullText(bookFullXml);
+        // genres are declared in the description only, the body needn't be scanned for them
+        int descriptionEnd = bookFullXml.indexOf(DESCRIPTION_END);
+        String descriptionXml = descriptionEnd == -1 ? bookFullXml :
+                bookFullXml.substring(0, descriptionEnd + DESCRIPTION_END.length());
+        fillResult(result, searchInText(descriptionXml, GENRE_QUERY, 0, budget), results, zip, entry);
+        result.setMatchedQueries(matchedQueries);
+        result.setMatchCount(matchCount);
 
         return result;
     }
 
-    private static List<SearchResult.SearchEncounter> searchInText(String bookText,
-                                                                   String searchQueryRegularExpression,
-                                                                   int contextSize) {
+    /**
+     * Hit of a metadata only search: the book is shown by its authors, title, language and year.
+     */
+    private static SearchResult toMetadataResult(String descriptionXml, BookMetadata metadata, MappedZipFile zip,
+                                                 ZipEntry entry) {
+        String summary = metadata.getSummary().isEmpty() ? entry.getName() : metadata.getSummary();
+        int titleInfoOffset = Math.max(0, descriptionXml.indexOf("<title-info"));
+        SearchResult.SearchEncounter match = new SearchResult.SearchEncounter(
+                summary, 0, summary.length(), titleInfoOffset, titleInfoOffset, null);
+        SearchResult result = new SearchResult();
+        fillResult(result, searchInText(descriptionXml, GENRE_QUERY, 0), List.of(match), zip, entry);
+        result.setMatchCount(1);
+        return result;
+    }
+
+    private static void fillResult(SearchResult result, List<SearchResult.SearchEncounter> genres,
+                                   List<SearchResult.SearchEncounter> matches, MappedZipFile zip, ZipEntry entry) {
+        result.setEncounters(Stream.concat(genres.stream(), matches.stream()).collect(Collectors.toList()));
+        result.setGenres(genres.stream().map(SearchResult.SearchEncounter::getContext).toList());
+        result.setCurrentEntry(entry.getName());
+        result.setCurrentFile(getArchiveName(zip));
+        result.setArchivePath(zip.getName());
+        result.setEntryCrc(entry.getCrc());
+    }
+
+    static List<SearchResult.SearchEncounter> searchInText(String bookText, QueryPlan queryPlan, int contextSize) {
+        return searchInText(bookText, queryPlan, contextSize, ScanBudget.UNLIMITED);
+    }
+
+    static List<SearchResult.SearchEncounter> searchInText(String bookText, QueryPlan queryPlan, int contextSize,
+                                                           ScanBudget budget) {
+        return findMatches(bookText, queryPlan, contextSize, Integer.MAX_VALUE, budget).encounters();
+    }
+
+    /**
+     * @param encounters the first matches with their context
+     * @param count all matches, the ones without an encounter included
+     */
+    private record Matches(List<SearchResult.SearchEncounter> encounters, int count) {}
+
+    /**
+     * Finds all matches, but cuts the context out only for the first maxEncounters of them.
+     */
+    private static Matches findMatches(String bookText, QueryPlan queryPlan, int contextSize, int maxEncounters,
+                                       ScanBudget budget) {
         List<SearchResult.SearchEncounter> result = new ArrayList<>();
-        Pattern pattern = Pattern.compile(searchQueryRegularExpression);
-        Matcher matcher = pattern.matcher(bookText);
+        int count = 0;
+        QueryPlan.QueryMatcher matcher = queryPlan.matcher(budget.wrap(bookText));
         while (matcher.find()) {
+            if (count++ >= maxEncounters) {
+                continue;
+            }
             int start = matcher.start();
             int end = matcher.end();
-            int matchLength = end - start;
+            int matchLength = Math.min(end - start, MAX_SNIPPET_MATCH_LENGTH);
 
             int contextStart = Math.max(0, start - contextSize / 2);
-            int contextEnd = Math.min(bookText.length(), end + contextSize / 2);
+            int contextEnd = Math.min(bookText.length(), start + matchLength + contextSize / 2);
             String context = bookText.substring(contextStart, contextEnd);
 
-            result.add(new SearchResult.SearchEncounter(context, start - contextStart, matchLength));
+            result.add(new SearchResult.SearchEncounter(
+                    context, start - contextStart, matchLength, start, start, null));
         }
-        return result;
+        return new Matches(result, count);
     }
 
-    private static String getBookRawText(Document document) throws XPathExpressionException {
-        XPathFactory xPathFactory = XPathFactory.newInstance();
-        XPath xpath = xPathFactory.newXPath();
-        XPathExpression expr = xpath.compile("//text()");
-        NodeList textNodes = (NodeList) expr.evaluate(document, XPathConstants.NODESET);
-        StringBuilder content = new StringBuilder();
-        for (int i = 0; i < textNodes.getLength(); i++) {
-            content.append(textNodes.item(i).getNodeValue()).append(" ");
-        }
-        return content.toString().trim();
+    private static String getArchiveName(MappedZipFile zip) {
+        return zip.getName().substring(zip.getName().lastIndexOf(File.separator)+1);
     }
 }
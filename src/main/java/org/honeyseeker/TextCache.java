@@ -0,0 +1,296 @@
+package org.honeyseeker;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+
+/**
+ * On-disk cache of extracted book text, keyed by archive name, entry name and entry CRC, so a changed book never
+ * hits a stale text. Texts are appended as UTF-8 to large segment files which are memory mapped on read.
+ * When the cache grows over its size cap, the least recently used segments are deleted as a whole.
+ */
+public class TextCache {
+    private static final int MAGIC = 0x48535443; // HSTC
+    private static final int VERSION = 1;
+    private static final String INDEX_FILE_NAME = "text_cache.idx";
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+    private static final long SEGMENT_SIZE = 64L * 1024 * 1024;
+
+    private final File folder;
+    private final long sizeCap;
+    private final Map<String, Location> locations = new HashMap<>();
+    private final Map<Integer, Segment> segments = new HashMap<>();
+    private long accessCounter = 0;
+    private Segment activeSegment;
+    private boolean isDirty = false;
+    /** Segments were read since the last flush, their order only matters once the next segment would evict one. */
+    private boolean isAccessOrderChanged = false;
+
+    private record Location(int segmentId, int offset, int length) {}
+
+    private static class Segment {
+        final int id;
+        final File file;
+        long size;
+        long lastAccess;
+        /** Texts being written outside the lock, the channel is closed once the last one is done. */
+        int pendingWrites;
+        FileChannel writeChannel;
+        MappedByteBuffer mapped;
+
+        Segment(int id, File file, long size, long lastAccess) {
+            this.id = id;
+            this.file = file;
+            this.size = size;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    private TextCache(File folder, long sizeCap) {
+        this.folder = folder;
+        this.sizeCap = sizeCap;
+    }
+
+    public static TextCache open(File folder, long sizeCap) throws IOException {
+        Files.createDirectories(folder.toPath());
+        TextCache cache = new TextCache(folder, sizeCap);
+        cache.load();
+        return cache;
+    }
+
+    public File getFolder() {
+        return folder;
+    }
+
+    /**
+     * @return cached text of the entry or null if it is not cached
+     */
+    public String get(String zipName, ZipEntry entry) throws IOException {
+        ByteBuffer bytes;
+        synchronized (this) {
+            Location location = locations.get(getKey(zipName, entry));
+            if (location == null) {
+                return null;
+            }
+            Segment segment = segments.get(location.segmentId());
+            if (segment.lastAccess != accessCounter) {
+                segment.lastAccess = ++accessCounter;
+                isAccessOrderChanged = true;
+            }
+            if (segment.mapped == null || segment.mapped.capacity() < location.offset() + location.length()) {
+                try (FileChannel channel = FileChannel.open(segment.file.toPath(), StandardOpenOption.READ)) {
+                    segment.mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                }
+            }
+            bytes = segment.mapped.slice(location.offset(), location.length());
+        }
+        return StandardCharsets.UTF_8.decode(bytes).toString();
+    }
+
+    /**
+     * Only the space for the text is reserved under the lock, the text is written without it and becomes visible
+     * to {@link #get} once it is written, so threads putting texts don't wait for each other's IO.
+     */
+    public void put(String zipName, ZipEntry entry, String text) throws IOException {
+        String key = getKey(zipName, entry);
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > SEGMENT_SIZE) {
+            return;
+        }
+        Segment segment;
+        FileChannel channel;
+        int offset;
+        synchronized (this) {
+            if (locations.containsKey(key)) {
+                return;
+            }
+            if (activeSegment == null || activeSegment.size + bytes.length > SEGMENT_SIZE) {
+                startNewSegment();
+            }
+            segment = activeSegment;
+            channel = segment.writeChannel;
+            offset = (int) segment.size;
+            segment.size += bytes.length;
+            segment.pendingWrites++;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, offset + buffer.position());
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                segment.pendingWrites--;
+                closeIfRetired(segment);
+            }
+            throw e;
+        }
+        synchronized (this) {
+            segment.pendingWrites--;
+            closeIfRetired(segment);
+            if (segments.get(segment.id) == segment && locations.putIfAbsent(key,
+                    new Location(segment.id, offset, bytes.length)) == null) {
+                segment.lastAccess = ++accessCounter;
+                isDirty = true;
+                evictOverCap();
+            }
+        }
+    }
+
+    /**
+     * Persists the list of cached entries, texts themselves are written immediately.
+     */
+    public synchronized void flush() throws IOException {
+        if (!isDirty && !(isAccessOrderChanged && getTotalSize() + SEGMENT_SIZE > sizeCap)) {
+            return;
+        }
+        File tempFile = File.createTempFile(INDEX_FILE_NAME, ".tmp", folder);
+        try {
+            try (DataOutputStream output = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+                output.writeInt(MAGIC);
+                output.writeInt(VERSION);
+                output.writeLong(accessCounter);
+                output.writeInt(segments.size());
+                for (Segment segment : segments.values()) {
+                    output.writeInt(segment.id);
+                    output.writeLong(segment.size);
+                    output.writeLong(segment.lastAccess);
+                }
+                output.writeInt(locations.size());
+                for (Map.Entry<String, Location> location : locations.entrySet()) {
+                    output.writeUTF(location.getKey());
+                    output.writeInt(location.getValue().segmentId());
+                    output.writeInt(location.getValue().offset());
+                    output.writeInt(location.getValue().length());
+                }
+            }
+            Files.move(tempFile.toPath(), new File(folder, INDEX_FILE_NAME).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tempFile.toPath());
+        }
+        isDirty = false;
+        isAccessOrderChanged = false;
+    }
+
+    public synchronized void close() throws IOException {
+        flush();
+        Segment lastSegment = activeSegment;
+        activeSegment = null;
+        if (lastSegment != null) {
+            closeIfRetired(lastSegment);
+        }
+    }
+
+    private void load() throws IOException {
+        File indexFile = new File(folder, INDEX_FILE_NAME);
+        if (indexFile.isFile()) {
+            try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+                if (input.readInt() == MAGIC && input.readInt() == VERSION) {
+                    accessCounter = input.readLong();
+                    int segmentCount = input.readInt();
+                    for (int i = 0; i < segmentCount; i++) {
+                        int id = input.readInt();
+                        Segment segment = new Segment(id, getSegmentFile(id), input.readLong(), input.readLong());
+                        if (segment.file.length() >= segment.size) {
+                            segments.put(id, segment);
+                        }
+                    }
+                    int locationCount = input.readInt();
+                    for (int i = 0; i < locationCount; i++) {
+                        String key = input.readUTF();
+                        Location location = new Location(input.readInt(), input.readInt(), input.readInt());
+                        Segment segment = segments.get(location.segmentId());
+                        if (segment != null && location.offset() + location.length() <= segment.size) {
+                            locations.put(key, location);
+                        }
+                    }
+                }
+            }
+        }
+        // segments written after the last flush are unknown, they are just garbage now
+        File[] segmentFiles = folder.listFiles((dir, name) ->
+                name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        if (segmentFiles != null) {
+            for (File segmentFile : segmentFiles) {
+                if (segments.values().stream().noneMatch(segment -> segment.file.equals(segmentFile))) {
+                    Files.deleteIfExists(segmentFile.toPath());
+                }
+            }
+        }
+    }
+
+    private void startNewSegment() throws IOException {
+        Segment previousSegment = activeSegment;
+        int id = segments.keySet().stream().mapToInt(Integer::intValue).max().orElse(0) + 1;
+        activeSegment = new Segment(id, getSegmentFile(id), 0, ++accessCounter);
+        activeSegment.writeChannel = FileChannel.open(activeSegment.file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        segments.put(id, activeSegment);
+        if (previousSegment != null) {
+            closeIfRetired(previousSegment);
+        }
+    }
+
+    private void closeIfRetired(Segment segment) throws IOException {
+        if (segment != activeSegment && segment.pendingWrites == 0 && segment.writeChannel != null) {
+            segment.writeChannel.close();
+            segment.writeChannel = null;
+        }
+    }
+
+    private void evictOverCap() throws IOException {
+        long totalSize = getTotalSize();
+        while (totalSize > sizeCap) {
+            Segment oldest = segments.values().stream()
+                    .filter(segment -> segment != activeSegment && segment.pendingWrites == 0)
+                    .min((a, b) -> Long.compare(a.lastAccess, b.lastAccess))
+                    .orElse(null);
+            if (oldest == null) {
+                return;
+            }
+            segments.remove(oldest.id);
+            totalSize -= oldest.size;
+            Iterator<Location> iterator = locations.values().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().segmentId() == oldest.id) {
+                    iterator.remove();
+                }
+            }
+            oldest.mapped = null;
+            if (!oldest.file.delete()) {
+                oldest.file.deleteOnExit(); // still mapped on Windows
+            }
+        }
+    }
+
+    private long getTotalSize() {
+        return segments.values().stream().mapToLong(segment -> segment.size).sum();
+    }
+
+    private File getSegmentFile(int id) {
+        return new File(folder, String.format("%s%05d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+    }
+
+    private static String getKey(String zipName, ZipEntry entry) {
+        return zipName + '\0' + entry.getName() + '\0' + Long.toHexString(entry.getCrc());
+    }
+}
@@ -0,0 +1,225 @@
+package org.honeyseeker;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Single pass streaming replacement of DOM + XPath {@code //text()}: text nodes are joined with a space,
+ * the same way the DOM based extraction did it, but nothing except the resulting text is kept in memory.
+ */
+public class TextExtractor {
+    private static final String DESCRIPTION_ELEMENT = "description";
+    private static final String TITLE_INFO_ELEMENT = "title-info";
+    private static final String AUTHOR_ELEMENT = "author";
+    /** How far the parser may read past the end of a text run before reporting it. */
+    private static final int MAX_PARSER_LOOKAHEAD = 16;
+    private static final ThreadLocal<XMLInputFactory> FACTORY = ThreadLocal.withInitial(() -> {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, false);
+        return factory;
+    });
+
+    public static String extractText(Reader reader, int expectedLength) throws XMLStreamException {
+        return extract(reader, expectedLength, null, ScanBudget.UNLIMITED);
+    }
+
+    /**
+     * Same as {@link #extractText} but also maps the text back to the XML, so matches found in the text can be
+     * located in the book.
+     */
+    public static MappedText extractMappedText(String bookFullXml) throws XMLStreamException {
+        return extractMappedText(bookFullXml, ScanBudget.UNLIMITED);
+    }
+
+    public static MappedText extractMappedText(String bookFullXml, ScanBudget budget) throws XMLStreamException {
+        OffsetMapBuilder offsets = new OffsetMapBuilder(bookFullXml);
+        try (StringReader reader = new StringReader(bookFullXml)) {
+            String text = extract(reader, bookFullXml.length(), offsets, budget);
+            return offsets.build(text);
+        }
+    }
+
+    /**
+     * Reads {@code <title-info>} of {@code <description>} and stops right after it, the body is never parsed.
+     *
+     * @return metadata of the book, empty if it has no title info
+     */
+    public static BookMetadata extractMetadata(Reader reader) throws XMLStreamException {
+        XMLStreamReader xml = FACTORY.get().createXMLStreamReader(reader);
+        try {
+            List<String> authors = new ArrayList<>();
+            List<String> genres = new ArrayList<>();
+            List<String> authorNames = null;
+            String title = "";
+            String lang = "";
+            String date = "";
+            boolean isInsideTitleInfo = false;
+            while (xml.hasNext()) {
+                int event = xml.next();
+                if (event == XMLStreamConstants.END_ELEMENT) {
+                    String name = xml.getLocalName();
+                    if (name.equals(AUTHOR_ELEMENT) && authorNames != null) {
+                        authors.add(String.join(" ", authorNames));
+                        authorNames = null;
+                    } else if (name.equals(TITLE_INFO_ELEMENT) || name.equals(DESCRIPTION_ELEMENT)) {
+                        break;
+                    }
+                    continue;
+                }
+                if (event != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                String name = xml.getLocalName();
+                if (name.equals(TITLE_INFO_ELEMENT)) {
+                    isInsideTitleInfo = true;
+                } else if (!isInsideTitleInfo) {
+                    continue;
+                }
+                switch (name) {
+                    case AUTHOR_ELEMENT -> authorNames = new ArrayList<>();
+                    case "first-name", "middle-name", "last-name", "nickname" -> {
+                        String authorName = xml.getElementText().trim();
+                        // translators have names too, only authors count
+                        if (authorNames != null && !authorName.isEmpty()) {
+                            authorNames.add(authorName);
+                        }
+                    }
+                    case "genre" -> genres.add(xml.getElementText().trim());
+                    case "book-title" -> title = xml.getElementText().trim();
+                    case "lang" -> lang = xml.getElementText().trim();
+                    case "date" -> {
+                        String value = xml.getAttributeValue(null, "value");
+                        String text = xml.getElementText().trim();
+                        date = value != null && !value.isBlank() ? value.trim() : text;
+                    }
+                    default -> {
+                    }
+                }
+            }
+            return new BookMetadata(List.copyOf(authors), title, List.copyOf(genres), lang, date);
+        } finally {
+            xml.close();
+        }
+    }
+
+    private static String extract(Reader reader, int expectedLength, OffsetMapBuilder offsets, ScanBudget budget)
+            throws XMLStreamException {
+        XMLStreamReader xml = FACTORY.get().createXMLStreamReader(reader);
+        try {
+            StringBuilder content = new StringBuilder(expectedLength);
+            // XPath text nodes are split by markup only, CDATA is merged into the surrounding text
+            boolean isInsideText = false;
+            while (xml.hasNext()) {
+                budget.tick();
+                int event = xml.next();
+                switch (event) {
+                    case XMLStreamConstants.CHARACTERS, XMLStreamConstants.SPACE, XMLStreamConstants.CDATA -> {
+                        if (offsets != null) {
+                            offsets.add(content.length(), xml);
+                        }
+                        content.append(xml.getTextCharacters(), xml.getTextStart(), xml.getTextLength());
+                        isInsideText = true;
+                    }
+                    default -> isInsideText = appendNodeSeparator(content, isInsideText);
+                }
+            }
+            return trim(content, offsets);
+        } finally {
+            xml.close();
+        }
+    }
+
+    private static String trim(StringBuilder content, OffsetMapBuilder offsets) {
+        if (offsets != null) {
+            int leadingLength = 0;
+            while (leadingLength < content.length() && content.charAt(leadingLength) <= ' ') {
+                leadingLength++;
+            }
+            offsets.trimmedLength = leadingLength;
+        }
+        return content.toString().trim();
+    }
+
+    private static class OffsetMapBuilder {
+        private final String source;
+        private int[] textStarts = new int[256];
+        private int[] xmlStarts = new int[256];
+        private int size = 0;
+        private int sourcePosition = 0;
+        /** Length of the whitespace trimmed from the start of the text. */
+        private int trimmedLength = 0;
+
+        OffsetMapBuilder(String source) {
+            this.source = source;
+        }
+
+        /**
+         * The parser only tells where it stopped reading, which is a few chars past the end of the run, so the
+         * run is looked up in the source right before that point. Runs with references in them are not found
+         * literally and are placed approximately.
+         */
+        void add(int textStart, XMLStreamReader xml) {
+            char[] chars = xml.getTextCharacters();
+            int start = xml.getTextStart();
+            int length = xml.getTextLength();
+            int readEnd = Math.min(xml.getLocation().getCharacterOffset(), source.length());
+            int xmlStart = Math.max(sourcePosition, readEnd - length);
+            for (int candidate = readEnd - length; candidate >= Math.max(sourcePosition, readEnd - length -
+                    MAX_PARSER_LOOKAHEAD); candidate--) {
+                if (matches(candidate, chars, start, length)) {
+                    xmlStart = candidate;
+                    break;
+                }
+            }
+            if (size == textStarts.length) {
+                textStarts = Arrays.copyOf(textStarts, size * 2);
+                xmlStarts = Arrays.copyOf(xmlStarts, size * 2);
+            }
+            textStarts[size] = textStart;
+            xmlStarts[size] = xmlStart;
+            size++;
+            sourcePosition = Math.min(xmlStart + length, source.length());
+        }
+
+        private boolean matches(int sourceStart, char[] chars, int start, int length) {
+            for (int i = 0; i < length; i++) {
+                if (source.charAt(sourceStart + i) != chars[start + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        MappedText build(String text) {
+            // runs that are trimmed away entirely are dropped, the first one left may lose its start
+            int first = 0;
+            while (first + 1 < size && textStarts[first + 1] <= trimmedLength) {
+                first++;
+            }
+            int count = Math.max(0, size - first);
+            int[] shiftedTextStarts = new int[count];
+            int[] shiftedXmlStarts = new int[count];
+            for (int i = 0; i < count; i++) {
+                int textStart = textStarts[first + i] - trimmedLength;
+                shiftedTextStarts[i] = Math.max(0, textStart);
+                shiftedXmlStarts[i] = xmlStarts[first + i] - Math.min(0, textStart);
+            }
+            return new MappedText(text, shiftedTextStarts, shiftedXmlStarts);
+        }
+    }
+
+    private static boolean appendNodeSeparator(StringBuilder content, boolean isInsideText) {
+        if (isInsideText) {
+            content.append(' ');
+        }
+        return false;
+    }
+}
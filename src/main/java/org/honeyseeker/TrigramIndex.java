@@ -0,0 +1,254 @@
+package org.honeyseeker;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Optional sidecar index of a single archive: for every trigram of the book text and XML it lists the entries
+ * containing it. Trigrams are lower cased and hashed into a fixed number of buckets, so the index can only give
+ * false positives, never miss a book.
+ * <p>
+ * File layout: header with the archive size and modification time, entry names, ids of entries that could not be
+ * indexed, then bucket offsets and delta + varint encoded posting lists. The file is memory mapped on read.
+ */
+public class TrigramIndex {
+    public static final String FILE_EXTENSION = ".hsidx";
+    private static final int MAGIC = 0x48535449; // HSTI
+    private static final int VERSION = 1;
+    private static final int BUCKET_BITS = 18;
+    private static final int BUCKET_COUNT = 1 << BUCKET_BITS;
+    private static final int TRIGRAM_LENGTH = 3;
+    private static final int HEADER_SIZE = 3 * Integer.BYTES + 2 * Long.BYTES;
+
+    private final List<String> entryNames;
+    private final int[] unindexedEntries;
+    private final MappedByteBuffer buffer;
+    private final int offsetsStart;
+    private final int postingsStart;
+
+    private TrigramIndex(List<String> entryNames, int[] unindexedEntries, MappedByteBuffer buffer, int offsetsStart) {
+        this.entryNames = entryNames;
+        this.unindexedEntries = unindexedEntries;
+        this.buffer = buffer;
+        this.offsetsStart = offsetsStart;
+        this.postingsStart = offsetsStart + (BUCKET_COUNT + 1) * Integer.BYTES;
+    }
+
+    public static File getIndexFile(File zipFile, String indexFolder) {
+        if (indexFolder == null || indexFolder.isEmpty()) {
+            return new File(zipFile.getPath() + FILE_EXTENSION);
+        }
+        return new File(indexFolder, zipFile.getName() + FILE_EXTENSION);
+    }
+
+    /**
+     * @return index of the archive or null if there is none or the archive changed since it was written
+     */
+    public static TrigramIndex open(File zipFile, File indexFile) throws IOException {
+        if (!indexFile.isFile()) {
+            return null;
+        }
+        // check the header without mapping, a mapped file can't be replaced on Windows until it is unmapped
+        try (DataInputStream header = new DataInputStream(new FileInputStream(indexFile))) {
+            if (header.readInt() != MAGIC || header.readInt() != VERSION || header.readInt() != BUCKET_BITS ||
+                    header.readLong() != zipFile.length() || header.readLong() != zipFile.lastModified()) {
+                return null;
+            }
+        } catch (EOFException e) {
+            return null;
+        }
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        buffer.position(HEADER_SIZE);
+        List<String> entryNames = new ArrayList<>();
+        int entryCount = buffer.getInt();
+        for (int i = 0; i < entryCount; i++) {
+            byte[] name = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(name);
+            entryNames.add(new String(name, StandardCharsets.UTF_8));
+        }
+        int[] unindexedEntries = new int[buffer.getInt()];
+        for (int i = 0; i < unindexedEntries.length; i++) {
+            unindexedEntries[i] = buffer.getInt();
+        }
+        return new TrigramIndex(entryNames, unindexedEntries, buffer, buffer.position());
+    }
+
+    /**
+     * @param requiredLiterals at least one of them is present in every match
+     * @return names of entries that may contain a match, or null if the literals are too short to prune anything
+     */
+    public Set<String> getCandidates(List<String> requiredLiterals) {
+        if (requiredLiterals.isEmpty()) {
+            return null;
+        }
+        BitSet candidates = new BitSet(entryNames.size());
+        for (String literal : requiredLiterals) {
+            if (literal.length() < TRIGRAM_LENGTH) {
+                return null;
+            }
+            BitSet literalCandidates = new BitSet(entryNames.size());
+            literalCandidates.set(0, entryNames.size());
+            for (int bucket : getBuckets(List.of(literal)).stream().toArray()) {
+                literalCandidates.and(readPostings(bucket));
+            }
+            candidates.or(literalCandidates);
+        }
+        for (int entryId : unindexedEntries) {
+            candidates.set(entryId);
+        }
+        Set<String> names = new HashSet<>();
+        candidates.stream().forEach(entryId -> names.add(entryNames.get(entryId)));
+        return names;
+    }
+
+    private BitSet readPostings(int bucket) {
+        BitSet postings = new BitSet(entryNames.size());
+        int position = postingsStart + buffer.getInt(offsetsStart + bucket * Integer.BYTES);
+        int end = postingsStart + buffer.getInt(offsetsStart + (bucket + 1) * Integer.BYTES);
+        int entryId = 0;
+        while (position < end) {
+            int delta = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buffer.get(position++);
+                delta |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            entryId += delta;
+            postings.set(entryId);
+        }
+        return postings;
+    }
+
+    /**
+     * Buckets of all trigrams of the given texts, the same hashing is used for books and for queries.
+     */
+    public static BitSet getBuckets(List<String> texts) {
+        BitSet buckets = new BitSet(BUCKET_COUNT);
+        for (String text : texts) {
+            if (text.length() < TRIGRAM_LENGTH) {
+                continue;
+            }
+            char first = Character.toLowerCase(text.charAt(0));
+            char second = Character.toLowerCase(text.charAt(1));
+            for (int i = 2; i < text.length(); i++) {
+                char third = Character.toLowerCase(text.charAt(i));
+                long trigram = ((long) first << 32) | ((long) second << 16) | third;
+                buckets.set((int) ((trigram * 0x9E3779B97F4A7C15L) >>> (Long.SIZE - BUCKET_BITS)));
+                first = second;
+                second = third;
+            }
+        }
+        return buckets;
+    }
+
+    /**
+     * Collects posting lists in memory, entries have to be added in id order.
+     */
+    public static class Builder {
+        private final List<String> entryNames;
+        private final List<Integer> unindexedEntries = new ArrayList<>();
+        private final byte[][] postings = new byte[BUCKET_COUNT][];
+        private final int[] postingLengths = new int[BUCKET_COUNT];
+        private final int[] lastEntryIds = new int[BUCKET_COUNT];
+        private int nextEntryId = 0;
+
+        public Builder(List<String> entryNames) {
+            this.entryNames = List.copyOf(entryNames);
+        }
+
+        /**
+         * @param buckets buckets of the entry or null if the entry could not be read
+         */
+        public void add(BitSet buckets) {
+            int entryId = nextEntryId++;
+            if (buckets == null) {
+                unindexedEntries.add(entryId);
+                return;
+            }
+            buckets.stream().forEach(bucket -> {
+                appendVarint(bucket, entryId - lastEntryIds[bucket]);
+                lastEntryIds[bucket] = entryId;
+            });
+        }
+
+        private void appendVarint(int bucket, int value) {
+            if (postings[bucket] == null) {
+                postings[bucket] = new byte[16];
+            } else if (postingLengths[bucket] + 5 > postings[bucket].length) {
+                postings[bucket] = Arrays.copyOf(postings[bucket], postings[bucket].length * 2);
+            }
+            while ((value & ~0x7F) != 0) {
+                postings[bucket][postingLengths[bucket]++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            postings[bucket][postingLengths[bucket]++] = (byte) value;
+        }
+
+        public void write(File zipFile, File indexFile) throws IOException {
+            long postingsSize = Arrays.stream(postingLengths).asLongStream().sum();
+            if (postingsSize > Integer.MAX_VALUE / 2) {
+                throw new IOException("index of " + zipFile.getName() + " is too large: " + postingsSize);
+            }
+            File folder = indexFile.getAbsoluteFile().getParentFile();
+            Files.createDirectories(folder.toPath());
+            File tempFile = File.createTempFile(indexFile.getName(), ".tmp", folder);
+            try {
+                try (DataOutputStream output = new DataOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+                    output.writeInt(MAGIC);
+                    output.writeInt(VERSION);
+                    output.writeInt(BUCKET_BITS);
+                    output.writeLong(zipFile.length());
+                    output.writeLong(zipFile.lastModified());
+                    output.writeInt(entryNames.size());
+                    for (String name : entryNames) {
+                        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+                        output.writeShort(nameBytes.length);
+                        output.write(nameBytes);
+                    }
+                    output.writeInt(unindexedEntries.size());
+                    for (int entryId : unindexedEntries) {
+                        output.writeInt(entryId);
+                    }
+                    int offset = 0;
+                    for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+                        output.writeInt(offset);
+                        offset += postingLengths[bucket];
+                    }
+                    output.writeInt(offset);
+                    for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+                        if (postings[bucket] != null) {
+                            output.write(postings[bucket], 0, postingLengths[bucket]);
+                        }
+                    }
+                }
+                Files.move(tempFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                Files.deleteIfExists(tempFile.toPath());
+            }
+        }
+    }
+}
@@ -2,31 +2,203 @@ package org.honeyseeker;
 
 import com.ibm.icu.text.CharsetDetector;
 import com.ibm.icu.text.CharsetMatch;
-import org.apache.commons.io.ByteOrderMark;
-import org.apache.commons.io.input.BOMInputStream;
 
-import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
 import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 import java.util.regex.Matcher;
 
+/**
+ * Finds the charset of a book in tiers, from cheap to expensive:
+ * <ol>
+ * <li>the XML declaration, read straight from the bytes, if the bytes agree with it;</li>
+ * <li>the charset chosen for a book with the same declaration in the same archive, if the bytes agree with it;</li>
+ * <li>ICU statistical detection, for books without a declaration or with a wrong one.</li>
+ * </ol>
+ * Bytes agree with UTF-8 if they are valid UTF-8, and with other charsets if they decode without errors and are
+ * not valid UTF-8 with non-ASCII chars, a book like that is UTF-8 whatever it declares.
+ */
 public class XmlCharsetDetector {
     private static final Pattern QUOTE_PATTERN = Pattern.compile("[\"']");
+    private static final Pattern ENCODING_PATTERN = Pattern.compile("encoding\\s*=\\s*([\"'])([A-Za-z0-9._:-]+)\\1");
     private static final int CONFIDENCE_THRESHOLD = 90;
     private static final int MIN_ENCODING_NAME_LENGTH = 3;
+    private static final int MAX_DECLARATION_LENGTH = 256;
+    /** Confidence reported for a charset the bytes agreed with, no statistics needed. */
+    private static final int CONFIRMED_CONFIDENCE = 100;
+    private static final byte[] DECLARATION_START = "<?xml".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] DECLARATION_END = "?>".getBytes(StandardCharsets.US_ASCII);
+    static final int SAMPLE_SIZE = 4096;
 
-    public static Charset getCharsetFromXml(ZipFile zip, ZipEntry entry,
+    /**
+     * @param confidence confidence in the charset: {@value #CONFIRMED_CONFIDENCE} if the bytes agreed with it,
+     *                   otherwise the one of the ICU detector, 0 if the detector didn't suggest it
+     * @param isStatistical true if ICU statistical detection had to run
+     */
+    public record Detection(Charset charset, int confidence, boolean isStatistical) {}
+
+    /**
+     * Charsets chosen by statistical detection in one archive, keyed by the declaration they replaced.
+     * Books of an archive mostly come from the same source, so they tend to share both a wrong declaration and
+     * the right charset. Thread safe.
+     */
+    public static class ArchiveCache {
+        private final Map<String, Detection> decisions = new ConcurrentHashMap<>();
+    }
+
+    private enum Utf8Check { ASCII, VALID, INVALID }
+
+    public static Charset getCharsetFromXml(EntrySource source,
                                             @SuppressWarnings("unused") Logger logger // kept for debugging
-    ) throws IOException {
-        // Читаем первые несколько килобайт файла для детекции кодировки
-        byte[] fileStartBytes = readFileStart(zip, entry, 4096);
+    ) {
+        return detect(source).charset();
+    }
+
+    public static Detection detect(EntrySource source) {
+        return detect(source, null);
+    }
+
+    /**
+     * @param cache decisions of the archive the book is from, null to detect the book on its own
+     */
+    public static Detection detect(EntrySource source, ArchiveCache cache) {
+        // Берём первые несколько килобайт файла для детекции кодировки
+        return detect(source.getStart(SAMPLE_SIZE), cache);
+    }
+
+    /**
+     * @param fileStartBytes first {@link #SAMPLE_SIZE} bytes of the book or less, byte order mark excluded
+     * @param cache decisions of the archive the book is from, null to detect the book on its own
+     */
+    public static Detection detect(byte[] fileStartBytes, ArchiveCache cache) {
+        Utf8Check utf8Check = checkUtf8(fileStartBytes);
+        String declaredEncoding = findDeclaredEncoding(fileStartBytes);
+        if (declaredEncoding != null) {
+            Charset declaredCharset = toCharset(declaredEncoding);
+            if (declaredCharset != null && isAgreeing(fileStartBytes, utf8Check, declaredCharset)) {
+                return new Detection(declaredCharset, CONFIRMED_CONFIDENCE, false);
+            }
+        } else if (utf8Check == Utf8Check.VALID) {
+            // UTF-8 is the default of XML
+            return new Detection(StandardCharsets.UTF_8, CONFIRMED_CONFIDENCE, false);
+        }
+
+        String cacheKey = declaredEncoding == null ? "" : declaredEncoding.toLowerCase(Locale.ROOT);
+        if (cache != null) {
+            Detection decision = cache.decisions.get(cacheKey);
+            if (decision != null && isAgreeing(fileStartBytes, utf8Check, decision.charset())) {
+                return new Detection(decision.charset(), decision.confidence(), false);
+            }
+        }
+        Detection detection = detectStatistically(fileStartBytes, utf8Check);
+        if (cache != null) {
+            cache.decisions.put(cacheKey, detection);
+        }
+        return detection;
+    }
+
+    /**
+     * @return encoding of the XML declaration at the start of ASCII compatible bytes, null if there is none
+     */
+    private static String findDeclaredEncoding(byte[] bytes) {
+        int start = 0;
+        while (start < bytes.length && (bytes[start] == ' ' || bytes[start] == '\t' || bytes[start] == '\r' ||
+                bytes[start] == '\n')) {
+            start++;
+        }
+        if (!Arrays.equals(bytes, start, Math.min(bytes.length, start + DECLARATION_START.length),
+                DECLARATION_START, 0, DECLARATION_START.length)) {
+            return null;
+        }
+        int limit = Math.min(bytes.length, start + MAX_DECLARATION_LENGTH);
+        for (int end = start; end + DECLARATION_END.length <= limit; end++) {
+            if (bytes[end] == DECLARATION_END[0] && bytes[end + 1] == DECLARATION_END[1]) {
+                String declaration = new String(bytes, start, end - start, StandardCharsets.ISO_8859_1);
+                Matcher matcher = ENCODING_PATTERN.matcher(declaration);
+                return matcher.find() ? matcher.group(2) : null;
+            }
+        }
+        return null;
+    }
+
+    private static Charset toCharset(String encoding) {
+        try {
+            Charset charset = Charset.forName(encoding);
+            // the declaration was read as ASCII, so a charset writing it differently can't be right
+            return Arrays.equals(DECLARATION_START, "<?xml".getBytes(charset)) ? charset : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static boolean isAgreeing(byte[] bytes, Utf8Check utf8Check, Charset charset) {
+        if (charset.equals(StandardCharsets.UTF_8)) {
+            return utf8Check != Utf8Check.INVALID;
+        }
+        return utf8Check != Utf8Check.VALID && isDecodable(bytes, charset);
+    }
+
+    private static boolean isDecodable(byte[] bytes, Charset charset) {
+        CharsetDecoder decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        // not the end of input, the sample may cut a char in two
+        return !decoder.decode(ByteBuffer.wrap(bytes), CharBuffer.allocate(bytes.length), false).isError();
+    }
+
+    /**
+     * A sequence cut by the end of the sample is fine, the sample is usually the start of a longer book.
+     */
+    private static Utf8Check checkUtf8(byte[] bytes) {
+        boolean isAscii = true;
+        int i = 0;
+        while (i < bytes.length) {
+            int lead = bytes[i] & 0xFF;
+            if (lead < 0x80) {
+                i++;
+                continue;
+            }
+            isAscii = false;
+            int length;
+            int secondMin = 0x80;
+            int secondMax = 0xBF;
+            if (lead >= 0xC2 && lead <= 0xDF) {
+                length = 2;
+            } else if (lead >= 0xE0 && lead <= 0xEF) {
+                length = 3;
+                secondMin = lead == 0xE0 ? 0xA0 : 0x80; // overlong
+                secondMax = lead == 0xED ? 0x9F : 0xBF; // surrogates
+            } else if (lead >= 0xF0 && lead <= 0xF4) {
+                length = 4;
+                secondMin = lead == 0xF0 ? 0x90 : 0x80; // overlong
+                secondMax = lead == 0xF4 ? 0x8F : 0xBF; // over U+10FFFF
+            } else {
+                return Utf8Check.INVALID;
+            }
+            for (int j = 1; j < length && i + j < bytes.length; j++) {
+                int next = bytes[i + j] & 0xFF;
+                int min = j == 1 ? secondMin : 0x80;
+                int max = j == 1 ? secondMax : 0xBF;
+                if (next < min || next > max) {
+                    return Utf8Check.INVALID;
+                }
+            }
+            i += length;
+        }
+        return isAscii ? Utf8Check.ASCII : Utf8Check.VALID;
+    }
+
+    private static Detection detectStatistically(byte[] fileStartBytes, Utf8Check utf8Check) {
 
         // Определяем кодировку с помощью ICU4J
         CharsetDetector detector = new CharsetDetector();
@@ -39,22 +211,46 @@ public class XmlCharsetDetector {
         // Выбираем лучшую кодировку
         Charset finalCharset = selectBestCharset(declaredCharset, matches);
 
-        return finalCharset != null ? finalCharset : StandardCharsets.UTF_8;
+        Charset charset = finalCharset != null ? finalCharset : StandardCharsets.UTF_8;
+        if (!isAgreeing(fileStartBytes, utf8Check, charset)) {
+            // a guess the bytes don't agree with is surely wrong, the best suggestion they agree with is better
+            charset = findAgreeingMatch(fileStartBytes, utf8Check, matches, charset);
+        }
+        return new Detection(charset, getConfidence(charset, matches), true);
+    }
+
+    private static Charset findAgreeingMatch(byte[] fileStartBytes, Utf8Check utf8Check, CharsetMatch[] matches,
+                                             Charset defaultCharset) {
+        if (matches == null) {
+            return defaultCharset;
+        }
+        for (CharsetMatch match : matches) {
+            try {
+                Charset charset = Charset.forName(match.getName());
+                if (isAgreeing(fileStartBytes, utf8Check, charset)) {
+                    return charset;
+                }
+            } catch (IllegalArgumentException e) {
+                // Пропускаем неподдерживаемые кодировки
+            }
+        }
+        return defaultCharset;
     }
 
-    @SuppressWarnings("SameParameterValue")
-    private static byte[] readFileStart(ZipFile zip, ZipEntry entry, int numBytes) throws IOException {
-        try (InputStream rawStream = zip.getInputStream(entry);
-             BOMInputStream is = BOMInputStream.builder()
-                .setByteOrderMarks(
-                        ByteOrderMark.UTF_8, ByteOrderMark.UTF_16LE, ByteOrderMark.UTF_16BE, ByteOrderMark.UTF_32LE,
-                        ByteOrderMark.UTF_32BE
-                )
-                .setInputStream(rawStream).get()) {
-            byte[] buffer = new byte[numBytes];
-            int bytesRead = is.read(buffer);
-            return bytesRead == -1 ? new byte[0] : Arrays.copyOf(buffer, bytesRead);
+    private static int getConfidence(Charset charset, CharsetMatch[] matches) {
+        if (matches == null) {
+            return 0;
+        }
+        for (CharsetMatch match : matches) {
+            try {
+                if (Charset.forName(match.getName()).equals(charset)) {
+                    return match.getConfidence();
+                }
+            } catch (IllegalArgumentException e) {
+                // Пропускаем неподдерживаемые кодировки
+            }
         }
+        return 0;
     }
 
     private static Charset detectDeclaredCharset(byte[] fileStartBytes, CharsetMatch[] charsetMatches) {
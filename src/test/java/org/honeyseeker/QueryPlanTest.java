@@ -0,0 +1,39 @@
+package org.honeyseeker;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class QueryPlanTest {
+    @Test
+    void countedQuantifierIsNotText() {
+        assertEquals("b", QueryPlan.findRequiredLiteral("a{2,3}b"));
+        assertEquals("ppy", QueryPlan.findRequiredLiteral("ha{1,3}ppy"));
+        assertNull(QueryPlan.findRequiredLiteral("x{2}"));
+    }
+
+    @Test
+    void closingBracketFirstInClassIsMember() {
+        assertNull(QueryPlan.findRequiredLiteral("[]x]"));
+        assertNull(QueryPlan.findRequiredLiteral("[^]x]"));
+        assertEquals("d", QueryPlan.findRequiredLiteral("[^]abc]d"));
+    }
+
+    @Test
+    void requiredLiteralIsInEveryMatch() {
+        String[][] regexAndMatch = {
+                {"a{2,3}b", "aab"}, {"ha{1,3}ppy", "haaappy"}, {"x{2}", "xx"},
+                {"[]x]", "]"}, {"[^]x]", "y"}, {"[^]abc]d", "zd"},
+        };
+        for (String[] pair : regexAndMatch) {
+            assertTrue(Pattern.matches(pair[0], pair[1]), pair[0]);
+            for (String required : QueryPlan.compile(pair[0]).getRequiredLiterals()) {
+                assertTrue(pair[1].contains(required), pair[0] + " requires " + required);
+            }
+        }
+    }
+}